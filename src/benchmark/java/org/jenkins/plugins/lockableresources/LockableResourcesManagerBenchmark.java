@@ -0,0 +1,230 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.util.XStream2;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jenkins.plugins.lockableresources.actions.LockedResourcesBuildAction;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStructs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Drives the manager without a running Jenkins: it is created through its
+ * test constructor, so nothing is loaded and saving is a no-op.  Locking
+ * uses a mocked build, which answers only what the lock and release paths
+ * ask for, its project name and display name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LockableResourcesManagerBenchmark {
+
+	private static final int GROUPS = 10;
+	private static final int LB_LABELS = 4;
+	private static final int THREADS = 4;
+
+	@Param({"100", "10000", "100000"})
+	public int poolSize;
+
+	@Param({"false", "true"})
+	public boolean loadBalancing;
+
+	private LockableResourcesManager manager;
+	private LockableResourcesStruct required;
+	private LockedResourcesBuildAction action;
+	private List<String> lockNames;
+	private List<LockableResource> lockResources;
+	private AbstractBuild<?, ?> build;
+	private final XStream2 xstream = new XStream2();
+	// hands out the thread numbers for ThreadState
+	private final AtomicInteger threads = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		List<LockableResource> resources = new ArrayList<LockableResource>(poolSize);
+		for ( int i = 0; i < poolSize; i++ ) {
+			String labels = "pool group-" + (i % GROUPS);
+			if ( loadBalancing ) labels += " lb-" + (i % LB_LABELS);
+			resources.add(new LockableResource("r" + i, null, labels, null, null));
+		}
+		List<String> lbLabels = new ArrayList<String>();
+		if ( loadBalancing ) {
+			for ( int i = 0; i < LB_LABELS; i++ ) {
+				lbLabels.add("lb-" + i);
+			}
+		}
+		Map<String,String> aliases = Collections.emptyMap();
+		manager = new LockableResourcesManager(resources, lbLabels, aliases);
+
+		Set<LockableResource> group = manager.getResourcesWithLabel("group-3");
+		required = LockableResourcesStructs.of(group, "1");
+		action = new LockedResourcesBuildAction();
+		lockResources = new ArrayList<LockableResource>(group).subList(0, Math.min(4, group.size()));
+		lockNames = new ArrayList<String>();
+		for ( LockableResource r : lockResources ) {
+			lockNames.add(r.getName());
+		}
+
+		build = mockBuild(1);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static AbstractBuild<?, ?> mockBuild(int number) {
+		AbstractProject project = mock(AbstractProject.class);
+		when(project.getFullName()).thenReturn("benchmark");
+		AbstractBuild build = mock(AbstractBuild.class);
+		when(build.getParent()).thenReturn(project);
+		when(build.getFullDisplayName()).thenReturn("benchmark #" + number);
+		return build;
+	}
+
+	/**
+	 * The build of one benchmark thread, and resources no other thread
+	 * locks, taken from the whole pool rather than from one label.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+		List<String> ownNames;
+		List<LockableResource> ownResources;
+		AbstractBuild<?, ?> build;
+
+		@Setup(Level.Trial)
+		public void setUp(LockableResourcesManagerBenchmark benchmark) {
+			int thread = benchmark.threads.getAndIncrement();
+			build = mockBuild(2 + thread);
+			ownNames = new ArrayList<String>();
+			ownResources = new ArrayList<LockableResource>();
+			for ( int i = 0; i < 4; i++ ) {
+				LockableResource r = benchmark.manager.fromName("r" + ((thread * 4 + i) % benchmark.poolSize));
+				ownNames.add(r.getName());
+				ownResources.add(r);
+			}
+		}
+	}
+
+	@Benchmark
+	public Collection<LockableResource> queue() {
+		Collection<LockableResource> selected = manager.queue(required, 1, action, "project", 1);
+		for ( LockableResource r : selected ) {
+			r.unqueue();
+		}
+		return selected;
+	}
+
+	@Benchmark
+	public boolean lockUnlock() {
+		boolean locked = manager.lock(lockNames, build);
+		manager.unlock(lockResources, build);
+		if ( !locked ) throw new IllegalStateException("Resources were not free: " + lockNames);
+		return locked;
+	}
+
+	// threads locking resources of their own only meet on the shared locks
+	@Benchmark
+	@Threads(THREADS)
+	public boolean lockUnlockDisjoint(ThreadState thread) {
+		boolean locked = manager.lock(thread.ownNames, thread.build);
+		manager.unlock(thread.ownResources, thread.build);
+		if ( !locked ) throw new IllegalStateException("Resources were not free: " + thread.ownNames);
+		return locked;
+	}
+
+	// threads competing for the same resources, most attempts find them locked
+	@Benchmark
+	@Threads(THREADS)
+	public boolean lockUnlockShared(ThreadState thread) {
+		boolean locked = manager.lock(lockNames, thread.build);
+		if ( locked ) manager.unlock(lockResources, thread.build);
+		return locked;
+	}
+
+	@Benchmark
+	public boolean reserveUnreserve() {
+		boolean reserved = manager.reserve(lockResources, "user");
+		manager.unreserve(lockResources);
+		return reserved;
+	}
+
+	@Benchmark
+	public int getFreeResourceAmount() {
+		return manager.getFreeResourceAmount("group-3");
+	}
+
+	@Benchmark
+	public Set<LockableResource> getResourcesWithLabel() {
+		return manager.getResourcesWithLabel("group-3");
+	}
+
+	@Benchmark
+	public List<LockableResource> getResourcesForExpression() {
+		return manager.getResourcesForExpression("groovy:resourceLabels.contains('group-3')",
+		                                         Collections.<String,String>emptyMap());
+	}
+
+	@Benchmark
+	public LockableResourcesManager buildCaches() {
+		manager.rebuildCaches();
+		return manager;
+	}
+
+	// what save() spends its time on, without the file system
+	@Benchmark
+	public long save() {
+		CountingWriter out = new CountingWriter();
+		xstream.toXML(manager, out);
+		return out.count;
+	}
+
+	private static class CountingWriter extends Writer {
+		long count = 0;
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import hudson.model.AbstractBuild;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps queue items which need many resources from being starved by a
+ * steady flow of items which need few of them.
+ *
+ * An item asking for at least {@link #getMinSize()} resources which cannot
+ * get them leaves a reservation.  Younger items may only take resources an
+ * older reservation is waiting for if they are expected to release them
+ * before the reservation could start anyway, its shadow time, or if the
+ * reservation will have more resources than it needs by then.  This is
+ * conservative backfilling; the expected hold times are learned per project
+ * from the past locks.  A reservation whose start cannot be estimated, as
+ * the hold times of the current owners are not known yet, is treated as
+ * starting never, with nothing to spare: younger items get none of the
+ * resources it waits for.
+ *
+ * All methods are called with the manager's structure lock held, the state
+ * of resources guarded by other stripes is only used as an estimate.
+ */
+class BackfillScheduler {
+
+	static final int DEFAULT_MIN_SIZE = 2;
+	// reservations of items which stopped asking are dropped after this
+	private static final long STALE_NANOS = TimeUnit.MINUTES.toNanos(1);
+	// weight of the latest hold time in the average of a project
+	private static final double HOLD_WEIGHT = 0.25;
+
+	private static class Reservation {
+		final int queueItemId;
+		final long since;
+		ResourceIdSet candidates;
+		long generation;
+		int needed;
+		long lastSeen;
+
+		Reservation(int queueItemId, long since) {
+			this.queueItemId = queueItemId;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * When an older reservation gets its resources, and how many more than
+	 * it needs are free by then.
+	 */
+	static class Shadow {
+		final long time;
+		final int extra;
+
+		Shadow(long time, int extra) {
+			this.time = time;
+			this.extra = extra;
+		}
+	}
+
+	private final int minSize;
+	// in the order the items were first refused, which is oldest first
+	private final Map<Integer,Reservation> reservations = new LinkedHashMap<Integer,Reservation>();
+	// average hold time in nanoseconds by project full name
+	private final ConcurrentHashMap<String,Long> expectedHold = new ConcurrentHashMap<String,Long>();
+
+	/**
+	 * @param minSize the number of resources from which on a refused item
+	 *        reserves capacity, 0 or less to disable
+	 */
+	BackfillScheduler(int minSize) {
+		this.minSize = minSize;
+	}
+
+	int getMinSize() {
+		return minSize;
+	}
+
+	boolean isEnabled() {
+		return minSize > 0;
+	}
+
+	/**
+	 * Learns how long the builds of a project keep their resources.
+	 *
+	 * @param project the full name of the project
+	 * @param nanos how long one of its builds had a resource locked
+	 */
+	void recordHold(String project, long nanos) {
+		if ( project == null || nanos < 0 ) return;
+		Long old = expectedHold.get(project);
+		long updated = old == null ? nanos : (long)(old + HOLD_WEIGHT * (nanos - old));
+		expectedHold.put(project, updated);
+	}
+
+	/**
+	 * @return the average hold time of the project in nanoseconds, -1 if
+	 *         none of its builds released a resource yet
+	 */
+	long getExpectedHold(String project) {
+		Long hold = project != null ? expectedHold.get(project) : null;
+		return hold != null ? hold : -1;
+	}
+
+	/**
+	 * Records that an item was refused, it reserves capacity if it is large
+	 * enough.
+	 *
+	 * @param queueItemId the refused item
+	 * @param candidates the ids it may choose from
+	 * @param generation the configuration generation of the ids
+	 * @param needed how many of the candidates it needs
+	 * @param now System.nanoTime()
+	 */
+	synchronized void refused(int queueItemId, ResourceIdSet candidates, long generation, int needed, long now) {
+		if ( !isEnabled() || needed < minSize ) return;
+		Reservation r = reservations.get(queueItemId);
+		if ( r == null ) {
+			r = new Reservation(queueItemId, now);
+			reservations.put(queueItemId, r);
+		}
+		r.candidates = candidates;
+		r.generation = generation;
+		r.needed = needed;
+		r.lastSeen = now;
+	}
+
+	/**
+	 * Forgets the reservation of an item which got its resources or left
+	 * the queue.
+	 *
+	 * @return how long the item held a reservation in nanoseconds, -1 if it
+	 *         had none
+	 */
+	synchronized long cancel(int queueItemId, long now) {
+		Reservation r = reservations.remove(queueItemId);
+		return r != null ? now - r.since : -1;
+	}
+
+	synchronized int size() {
+		return reservations.size();
+	}
+
+	/**
+	 * Removes the resources which an item may not take because older
+	 * reservations wait for them.
+	 *
+	 * @param index the ids and states of the current configuration
+	 * @param generation the configuration generation of the index
+	 * @param queueItemId the item which wants resources
+	 * @param project the full name of its project
+	 * @param available the free candidates of the item
+	 * @param now System.nanoTime()
+	 * @return available itself if nothing is held back, because no older
+	 *         reservation waits for any of them or the item does not delay
+	 *         those which do, otherwise a copy with the held back ones
+	 *         cleared
+	 */
+	synchronized long[] allowed(ResourceStateIndex index, long generation, int queueItemId,
+	                            String project, long[] available, long now) {
+		if ( reservations.isEmpty() ) return available;
+		long hold = getExpectedHold(project);
+		long[] allowed = available;
+		Iterator<Reservation> it = reservations.values().iterator();
+		while ( it.hasNext() ) {
+			Reservation r = it.next();
+			// only older reservations count, and they come first
+			if ( r.queueItemId == queueItemId ) break;
+			if ( now - r.lastSeen > STALE_NANOS ) {
+				it.remove();
+				continue;
+			}
+			if ( r.generation != generation ) continue;
+			long[] wanted = ResourceIdSet.and(allowed, r.candidates);
+			int count = ResourceIdSet.cardinality(wanted);
+			if ( count == 0 ) continue;
+			Shadow shadow = shadow(index, r.candidates, r.needed, now);
+			// if it is not known when it could start, it keeps all it waits for
+			if ( shadow != null ) {
+				if ( hold >= 0 && now + hold <= shadow.time ) continue;
+				if ( count <= shadow.extra ) continue;
+			}
+			// only copied when something is held back, callers tell by identity
+			if ( allowed == available ) allowed = available.clone();
+			// leave the item no more than the reservation can spare
+			int keep = shadow != null ? shadow.extra : 0;
+			for ( int id = ResourceIdSet.nextSetBit(wanted, 0); id >= 0; id = ResourceIdSet.nextSetBit(wanted, id + 1) ) {
+				if ( keep > 0 ) keep--;
+				else ResourceIdSet.clear(allowed, id);
+			}
+		}
+		return allowed;
+	}
+
+	/**
+	 * Estimates when enough of the candidates are free, from the expected
+	 * hold times of the builds and queue items which have them now.
+	 * Reserved resources and those of projects without a known hold time
+	 * are not expected to become free.
+	 *
+	 * @return the shadow, or null if the candidates are not expected to
+	 *         suffice
+	 */
+	Shadow shadow(ResourceStateIndex index, ResourceIdSet candidates, int needed, long now) {
+		ResourceIdSet free = new ResourceIdSet(index.free(candidates));
+		int freeCount = free.size();
+		if ( freeCount >= needed ) return new Shadow(now, freeCount - needed);
+
+		List<Long> releases = new ArrayList<Long>();
+		for ( int id = candidates.nextId(0); id >= 0 && id < index.size(); id = candidates.nextId(id + 1) ) {
+			if ( free.contains(id) ) continue;
+			LockableResource r = index.get(id);
+			if ( r.isReserved() ) continue;
+			AbstractBuild<?, ?> build = r.getBuild();
+			long release;
+			if ( build != null ) {
+				long hold = getExpectedHold(build.getParent().getFullName());
+				if ( hold < 0 ) continue;
+				release = Math.max(now, r.getLockedSince() + hold);
+			}
+			else {
+				long hold = getExpectedHold(r.peekQueueItemProject());
+				if ( hold < 0 ) continue;
+				release = now + hold;
+			}
+			releases.add(release);
+		}
+		int missing = needed - freeCount;
+		if ( releases.size() < missing ) return null;
+
+		Long[] sorted = releases.toArray(new Long[releases.size()]);
+		Arrays.sort(sorted);
+		long time = sorted[missing - 1];
+		int extra = 0;
+		for ( int i = missing; i < sorted.length && sorted[i] <= time; i++ ) {
+			extra++;
+		}
+		return new Shadow(time, extra);
+	}
+}
@@ -0,0 +1,273 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jenkins.plugins.lockableresources.queue.BlockedItems;
+
+/**
+ * Assigns the free resources to all blocked queue items at once, instead
+ * of letting each item grab whatever it sees first when the dispatcher
+ * happens to ask for it.  That way an item which can use any of many
+ * resources does not take the one scarce resource another item needs.
+ *
+ * The items are added to the assignment oldest first.  Each one gets as
+ * many resources as it needs along augmenting paths, which may move
+ * resources already given to older items to other candidates of theirs;
+ * if that is not possible the item is left out and the assignment is rolled
+ * back to what it was before.  This is a maximum flow from the items to the
+ * resources, computed incrementally so that older items are never dropped
+ * for younger ones.
+ *
+ * The plan is computed once per cycle, on a timer and whenever resources
+ * are released, and published for the dispatcher, which only reads it.  A
+ * plan of an older configuration is not used.
+ */
+class BatchMatcher {
+
+	// milliseconds between two plans, besides those after releases
+	static final long DEFAULT_INTERVAL = 1000;
+
+	/**
+	 * The outcome of one matching.
+	 */
+	static class Plan {
+		// resource ids by queue item id
+		private final Map<Integer,long[]> assigned;
+		// the items which were part of the matching
+		private final Set<Integer> considered;
+		// all assigned ids
+		private final long[] all;
+		final long generation;
+		final long created;
+
+		Plan(Map<Integer,long[]> assigned, Set<Integer> considered, long[] all, long generation, long created) {
+			this.assigned = assigned;
+			this.considered = considered;
+			this.all = all;
+			this.generation = generation;
+			this.created = created;
+		}
+
+		/**
+		 * @return the ids assigned to the item, null if it got none
+		 */
+		synchronized long[] getAssigned(int queueItemId) {
+			return assigned.get(queueItemId);
+		}
+
+		/**
+		 * @return true if the item was part of the matching and got nothing
+		 */
+		synchronized boolean isLeftOut(int queueItemId) {
+			return considered.contains(queueItemId) && !assigned.containsKey(queueItemId);
+		}
+
+		/**
+		 * Restricts the free candidates of an item to what the plan gave
+		 * it, or to what it gave nobody if the item is not part of it.
+		 *
+		 * @return a new bitmap
+		 */
+		synchronized long[] restrict(int queueItemId, long[] available) {
+			long[] restricted = available.clone();
+			long[] mine = assigned.get(queueItemId);
+			for ( int w = 0; w < restricted.length; w++ ) {
+				if ( mine != null ) restricted[w] &= w < mine.length ? mine[w] : 0L;
+				else restricted[w] &= w < all.length ? ~all[w] : ~0L;
+			}
+			return restricted;
+		}
+
+		/**
+		 * Gives up the assignment of an item which got its resources.
+		 */
+		synchronized void consumed(int queueItemId) {
+			long[] mine = assigned.remove(queueItemId);
+			if ( mine == null ) return;
+			for ( int w = 0; w < mine.length && w < all.length; w++ ) {
+				all[w] &= ~mine[w];
+			}
+		}
+
+		synchronized int size() {
+			return assigned.size();
+		}
+	}
+
+	// replaced as a whole by replan()
+	private volatile Plan plan = null;
+
+	/**
+	 * @param generation the current configuration generation
+	 * @return the published plan, or null if there is none for the
+	 *         generation yet
+	 */
+	Plan getPlan(long generation) {
+		Plan plan = this.plan;
+		return plan != null && plan.generation == generation ? plan : null;
+	}
+
+	/**
+	 * Matches the blocked items again and publishes the new plan.
+	 *
+	 * @return the new plan
+	 */
+	synchronized Plan replan(ResourceStateIndex index, long generation, BlockedItems blocked, long now) {
+		Plan plan = match(index, blocked.getBlocked(), generation, now);
+		this.plan = plan;
+		return plan;
+	}
+
+	/**
+	 * @param index the ids and states of the current configuration
+	 * @param blocked the blocked items, the ones to serve first first
+	 */
+	static Plan match(ResourceStateIndex index, List<BlockedItems.Blocked> blocked, long generation, long now) {
+		Matching m = new Matching(index.size());
+		Map<Integer,Integer> items = new HashMap<Integer,Integer>();
+		Set<Integer> considered = new HashSet<Integer>();
+		for ( BlockedItems.Blocked b : blocked ) {
+			considered.add(b.queueItemId);
+			ResourceIdSet candidates = index.idsOf(b.candidates);
+			long[] free = index.free(candidates);
+			int needed = b.needed > 0 ? b.needed : candidates.size();
+			if ( needed == 0 || needed > ResourceIdSet.cardinality(free) ) continue;
+			if ( m.add(free, needed) ) items.put(b.queueItemId, m.items() - 1);
+		}
+
+		Map<Integer,long[]> assigned = new HashMap<Integer,long[]>();
+		long[] all = ResourceIdSet.newWords(index.size());
+		for ( Map.Entry<Integer,Integer> e : items.entrySet() ) {
+			long[] mine = m.assignedTo(e.getValue());
+			assigned.put(e.getKey(), mine);
+			for ( int w = 0; w < all.length; w++ ) {
+				all[w] |= mine[w];
+			}
+		}
+		return new Plan(assigned, considered, all, generation, now);
+	}
+
+	/**
+	 * Bipartite matching where each item needs a given number of its
+	 * candidate resources.
+	 */
+	static class Matching {
+		private final int[] owner;
+		private final List<long[]> candidates = new ArrayList<long[]>();
+		// undo log of the item being added: resource id, previous owner
+		private final List<int[]> changes = new ArrayList<int[]>();
+		// scratch space of augment(), which runs once per resource an item needs
+		private final int[] from;
+		private final long[] seen;
+		private int[] via = new int[16];
+		private boolean[] reached = new boolean[16];
+		private int[] queue = new int[16];
+
+		Matching(int resources) {
+			owner = new int[resources];
+			Arrays.fill(owner, -1);
+			from = new int[resources];
+			seen = ResourceIdSet.newWords(resources);
+		}
+
+		int items() {
+			return candidates.size();
+		}
+
+		/**
+		 * Adds an item which needs the given number of its candidates, if
+		 * that is possible without leaving an earlier item short.
+		 *
+		 * @return true if the item was added
+		 */
+		boolean add(long[] itemCandidates, int needed) {
+			int item = candidates.size();
+			candidates.add(itemCandidates);
+			changes.clear();
+			for ( int i = 0; i < needed; i++ ) {
+				if ( !augment(item) ) {
+					for ( int c = changes.size() - 1; c >= 0; c-- ) {
+						owner[changes.get(c)[0]] = changes.get(c)[1];
+					}
+					// keep the index of later items, but never use this one
+					candidates.set(item, new long[0]);
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return the resources assigned to the item
+		 */
+		long[] assignedTo(int item) {
+			long[] words = ResourceIdSet.newWords(owner.length);
+			for ( int id = 0; id < owner.length; id++ ) {
+				if ( owner[id] == item ) ResourceIdSet.set(words, id);
+			}
+			return words;
+		}
+
+		// finds one more resource for the item, breadth first
+		private boolean augment(int item) {
+			int items = candidates.size();
+			if ( via.length < items ) {
+				int size = Math.max(items, via.length * 2);
+				via = new int[size];
+				reached = new boolean[size];
+				queue = new int[size];
+			}
+			else {
+				Arrays.fill(reached, 0, items, false);
+			}
+			// from and via are written before they are read
+			Arrays.fill(seen, 0L);
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = item;
+			reached[item] = true;
+			while ( head < tail ) {
+				int i = queue[head++];
+				long[] c = candidates.get(i);
+				for ( int id = ResourceIdSet.nextSetBit(c, 0); id >= 0; id = ResourceIdSet.nextSetBit(c, id + 1) ) {
+					if ( (seen[id >>> 6] & (1L << id)) != 0 ) continue;
+					int current = owner[id];
+					if ( current == i ) continue;
+					ResourceIdSet.set(seen, id);
+					from[id] = i;
+					if ( current < 0 ) {
+						// hand every resource on the path to the item which reached it
+						int r = id;
+						while ( true ) {
+							int to = from[r];
+							changes.add(new int[] { r, owner[r] });
+							owner[r] = to;
+							if ( to == item ) return true;
+							r = via[to];
+						}
+					}
+					if ( !reached[current] ) {
+						reached[current] = true;
+						via[current] = id;
+						queue[tail++] = current;
+					}
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+/**
+ * Assigns the free resources to the blocked queue items once per interval,
+ * so that the dispatcher only reads the published assignment.  Jenkins of
+ * this version has no queue listener to do it once per queue maintenance;
+ * releases trigger an assignment of their own.
+ */
+@Extension
+public class BatchMatchingWork extends PeriodicWork {
+
+	@Override
+	public long getRecurrencePeriod() {
+		LockableResourcesManager manager = LockableResourcesManager.get();
+		// checking once a day costs nothing when batch matching is disabled
+		return manager != null && manager.isBatchMatching() ? LockableResourcesManager.BATCH_INTERVAL : DAY;
+	}
+
+	@Override
+	protected void doRun() {
+		LockableResourcesManager manager = LockableResourcesManager.get();
+		if ( manager != null ) manager.replanBatch();
+	}
+}
@@ -0,0 +1,175 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * A batch of reservations, unreservations, unlocks and resets which the
+ * manager applies all at once or not at all, see
+ * {@link LockableResourcesManager#apply(List, String, boolean)}.
+ *
+ * The batch is a JSON object with a list of operations, each naming the
+ * resources it applies to, or for reservations a label and the number of
+ * its free resources to reserve:
+ * <pre>
+ * {"operations": [
+ *   {"action": "reserve", "resources": ["printer1", "printer2"]},
+ *   {"action": "reserve", "label": "android", "count": 20},
+ *   {"action": "reset", "resources": ["scanner"]}
+ * ]}
+ * </pre>
+ */
+public class BulkOperations {
+
+	public static final String RESERVE = "reserve";
+	public static final String UNRESERVE = "unreserve";
+	public static final String UNLOCK = "unlock";
+	public static final String RESET = "reset";
+
+	public static final String OK = "ok";
+	public static final String NOT_FOUND = "not_found";
+	public static final String DUPLICATE = "duplicate";
+	public static final String CONFLICT = "conflict";
+	public static final String FORBIDDEN = "forbidden";
+	public static final String INSUFFICIENT = "insufficient";
+	public static final String ABORTED = "aborted";
+
+	/**
+	 * One operation of the batch.
+	 */
+	public static class Operation {
+		public final String action;
+		// empty if selected by label
+		public final List<String> resources;
+		public final String label;
+		public final int count;
+
+		public Operation(String action, List<String> resources, String label, int count) {
+			this.action = action;
+			this.resources = resources;
+			this.label = label;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * What happened to one resource, or to a label which had too few free
+	 * resources.
+	 */
+	public static class Result {
+		public final String action;
+		public final String resource;
+		public final String label;
+		public final String status;
+		public final String message;
+
+		Result(String action, String resource, String label, String status, String message) {
+			this.action = action;
+			this.resource = resource;
+			this.label = label;
+			this.status = status;
+			this.message = message;
+		}
+
+		JSONObject toJSON() {
+			JSONObject json = new JSONObject();
+			json.put("action", action);
+			if ( resource != null ) json.put("resource", resource);
+			if ( label != null ) json.put("label", label);
+			json.put("status", status);
+			if ( message != null ) json.put("message", message);
+			return json;
+		}
+	}
+
+	/**
+	 * The results of a whole batch.
+	 */
+	public static class Outcome {
+		public final boolean applied;
+		public final List<Result> results;
+
+		Outcome(boolean applied, List<Result> results) {
+			this.applied = applied;
+			this.results = Collections.unmodifiableList(results);
+		}
+
+		public JSONObject toJSON() {
+			JSONObject json = new JSONObject();
+			json.put("applied", applied);
+			JSONArray results = new JSONArray();
+			for ( Result r : this.results ) {
+				results.add(r.toJSON());
+			}
+			json.put("results", results);
+			return json;
+		}
+	}
+
+	private BulkOperations() {
+	}
+
+	/**
+	 * @param json the batch
+	 * @return its operations, in order
+	 * @throws IllegalArgumentException if the batch is malformed
+	 */
+	public static List<Operation> parse(JSONObject json) {
+		Object operations = json.get("operations");
+		if ( !(operations instanceof JSONArray) ) {
+			throw new IllegalArgumentException("Expected a list of operations");
+		}
+		List<Operation> parsed = new ArrayList<Operation>();
+		for ( Object o : (JSONArray)operations ) {
+			if ( !(o instanceof JSONObject) ) {
+				throw new IllegalArgumentException("Expected an operation, got " + o);
+			}
+			JSONObject op = (JSONObject)o;
+			String action = op.optString("action", null);
+			if ( !RESERVE.equals(action) && !UNRESERVE.equals(action)
+					&& !UNLOCK.equals(action) && !RESET.equals(action) ) {
+				throw new IllegalArgumentException("Unknown action " + action);
+			}
+			List<String> resources = new ArrayList<String>();
+			Object names = op.get("resources");
+			if ( names instanceof JSONArray ) {
+				for ( Object name : (JSONArray)names ) {
+					resources.add(String.valueOf(name));
+				}
+			}
+			else if ( names != null ) {
+				throw new IllegalArgumentException("Expected a list of resources, got " + names);
+			}
+			String label = op.optString("label", null);
+			int count = op.optInt("count", 0);
+			if ( label != null ) {
+				if ( !RESERVE.equals(action) ) {
+					throw new IllegalArgumentException("Only reservations can select resources by label");
+				}
+				if ( !resources.isEmpty() ) {
+					throw new IllegalArgumentException("Either give resources or a label, not both");
+				}
+				if ( count <= 0 ) {
+					throw new IllegalArgumentException("Expected a positive count of resources with label " + label);
+				}
+			}
+			else if ( resources.isEmpty() ) {
+				throw new IllegalArgumentException("Expected resources or a label for " + action);
+			}
+			parsed.add(new Operation(action, resources, label, count));
+		}
+		return parsed;
+	}
+}
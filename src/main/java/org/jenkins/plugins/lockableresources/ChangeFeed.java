@@ -0,0 +1,275 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Versioned changes of the resources, for clients which follow them as
+ * server-sent events instead of polling.
+ *
+ * The latest events are kept in a ring, so a reconnecting client can
+ * resume after the last event it saw.  Every subscriber has a bounded
+ * buffer which the manager only ever offers to; a subscriber which does
+ * not keep up is marked as overflowed and has to resume from the ring.
+ * Event ids carry the start time of the feed, so that after a restart
+ * clients learn that they have to reload the resources.
+ */
+public class ChangeFeed {
+
+	public static final String QUEUED = "queued";
+	public static final String UNQUEUED = "unqueued";
+	public static final String LOCKED = "locked";
+	public static final String UNLOCKED = "unlocked";
+	public static final String RESERVED = "reserved";
+	public static final String UNRESERVED = "unreserved";
+	public static final String RESET = "reset";
+	public static final String CONFIG = "config";
+	// sent to a client which has to reload the resources
+	public static final String RESYNC = "resync";
+	// sent to a client before closing its stream because it fell behind
+	public static final String OVERFLOW = "overflow";
+
+	/**
+	 * One change of one resource, or of the configuration.
+	 */
+	public static class Event {
+		public final long version;
+		public final String type;
+		// null for configuration changes
+		public final String resource;
+		// the build, user or queued project, if any
+		public final String detail;
+
+		Event(long version, String type, String resource, String detail) {
+			this.version = version;
+			this.type = type;
+			this.resource = resource;
+			this.detail = detail;
+		}
+
+		public JSONObject toJSON() {
+			JSONObject json = new JSONObject();
+			json.put("version", version);
+			if ( resource != null ) json.put("resource", resource);
+			if ( detail != null ) json.put("detail", detail);
+			return json;
+		}
+	}
+
+	/**
+	 * The events of one client.
+	 */
+	public class Subscription {
+		private final ArrayBlockingQueue<Event> buffer;
+		private final List<Event> backlog;
+		private final boolean resync;
+		private final long version;
+		private volatile boolean overflowed = false;
+
+		Subscription(int size, List<Event> backlog, boolean resync, long version) {
+			this.buffer = new ArrayBlockingQueue<Event>(size);
+			this.backlog = backlog;
+			this.resync = resync;
+			this.version = version;
+		}
+
+		/**
+		 * @return the version of the latest event when the subscription
+		 *         started; the backlog ends with it and the buffered events
+		 *         follow it
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return the events the client missed, oldest first
+		 */
+		public List<Event> getBacklog() {
+			return backlog;
+		}
+
+		/**
+		 * @return true if the client missed more than the ring holds, or
+		 *         its events are from before a restart
+		 */
+		public boolean isResync() {
+			return resync;
+		}
+
+		/**
+		 * @return true if events were dropped because the client did not
+		 *         keep up, it should resume after the events it got
+		 */
+		public boolean isOverflowed() {
+			return overflowed;
+		}
+
+		/**
+		 * @return the next event, or null if there was none within the timeout
+		 */
+		public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+			return buffer.poll(timeout, unit);
+		}
+
+		/**
+		 * @return the next event if one is buffered, null otherwise
+		 */
+		public Event poll() {
+			return buffer.poll();
+		}
+
+		void offer(Event e) {
+			if ( overflowed ) return;
+			if ( !buffer.offer(e) ) overflowed = true;
+		}
+
+		public void close() {
+			subscriptions.remove(this);
+		}
+	}
+
+	private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+	private final Event[] ring;
+	private final int bufferSize;
+	private final int maxSubscriptions;
+	private long version = 0;
+	private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	/**
+	 * @param ringSize how many events are kept for resuming clients
+	 * @param bufferSize how many events a client may fall behind
+	 * @param maxSubscriptions how many clients may follow at once
+	 */
+	public ChangeFeed(int ringSize, int bufferSize, int maxSubscriptions) {
+		this.ring = new Event[ringSize];
+		this.bufferSize = bufferSize;
+		this.maxSubscriptions = maxSubscriptions;
+	}
+
+	/**
+	 * Records a change and hands it to every subscriber, never blocking.
+	 * The manager calls this with the stripes of the changed resources held,
+	 * so the events of a resource are in the order of its changes.  The
+	 * price is one short lock shared by all stripes, held for writing into
+	 * the ring and offering to the bounded subscriber buffers.
+	 *
+	 * @param type one of the event types
+	 * @param resource the changed resource, null for the configuration
+	 * @param detail the build, user or queued project, or null
+	 */
+	public void publish(String type, String resource, String detail) {
+		Event e;
+		synchronized (ring) {
+			e = new Event(++version, type, resource, detail);
+			ring[(int)(e.version % ring.length)] = e;
+			// under the lock, so subscribers get the events in order
+			for ( Subscription s : subscriptions ) {
+				s.offer(e);
+			}
+		}
+	}
+
+	/**
+	 * @return the version of the latest event, 0 if there was none
+	 */
+	public long getVersion() {
+		synchronized (ring) {
+			return version;
+		}
+	}
+
+	/**
+	 * @return the id of the given version, as sent to clients
+	 */
+	public String id(long version) {
+		return epoch + "-" + version;
+	}
+
+	/**
+	 * Starts following the changes.
+	 *
+	 * @param lastEventId the id of the last event the client saw, null for
+	 *        a client which only wants the changes from now on
+	 * @return the subscription, which must be closed, or null if there are
+	 *         too many already
+	 */
+	public Subscription subscribe(String lastEventId) {
+		synchronized (ring) {
+			if ( subscriptions.size() >= maxSubscriptions ) return null;
+			List<Event> backlog = Collections.emptyList();
+			boolean resync = false;
+			if ( lastEventId != null ) {
+				long since = parse(lastEventId);
+				long oldest = Math.max(1, version - ring.length + 1);
+				if ( since < 0 || since > version || since + 1 < oldest ) {
+					resync = true;
+				}
+				else {
+					backlog = new ArrayList<Event>();
+					for ( long v = since + 1; v <= version; v++ ) {
+						backlog.add(ring[(int)(v % ring.length)]);
+					}
+				}
+			}
+			Subscription s = new Subscription(bufferSize, backlog, resync, version);
+			subscriptions.add(s);
+			return s;
+		}
+	}
+
+	/**
+	 * @return the number of clients following the changes
+	 */
+	public int getSubscriptions() {
+		return subscriptions.size();
+	}
+
+	// the version of an id of this feed, -1 for ids from before a restart
+	private long parse(String id) {
+		int dash = id.lastIndexOf('-');
+		if ( dash < 0 || !id.substring(0, dash).equals(epoch) ) return -1;
+		try {
+			return Long.parseLong(id.substring(dash + 1));
+		}
+		catch ( NumberFormatException ex ) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Writes an event in the server-sent events format.
+	 */
+	public void write(Writer out, Event e) throws IOException {
+		out.write("id: " + id(e.version) + "\n");
+		out.write("event: " + e.type + "\n");
+		out.write("data: " + e.toJSON() + "\n\n");
+	}
+
+	/**
+	 * Writes an event without data, like {@link #RESYNC} or {@link #OVERFLOW}.
+	 *
+	 * @param version the version the client should resume after
+	 */
+	public void write(Writer out, String type, long version) throws IOException {
+		out.write("id: " + id(version) + "\n");
+		out.write("event: " + type + "\n");
+		out.write("data: {\"version\":" + version + "}\n\n");
+	}
+}
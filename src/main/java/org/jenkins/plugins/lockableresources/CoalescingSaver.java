@@ -0,0 +1,137 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind persistence: save requests only mark the state dirty, and a
+ * background thread writes it once the coalescing window has passed, so a
+ * burst of changes results in a single write.
+ *
+ * With a window of 0 every request is written right away by the caller.
+ */
+class CoalescingSaver {
+
+	private static final Logger LOGGER = Logger.getLogger(CoalescingSaver.class.getName());
+
+	private final Runnable save;
+	private final long windowMillis;
+	private final AtomicBoolean dirty = new AtomicBoolean();
+	private final AtomicLong requested = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private ScheduledThreadPoolExecutor executor;
+	private boolean stopped = false;
+
+	/**
+	 * @param save writes the state, must serialize concurrent writes itself
+	 * @param windowMillis how long to wait for more changes before writing
+	 */
+	CoalescingSaver(Runnable save, long windowMillis) {
+		this.save = save;
+		this.windowMillis = Math.max(0, windowMillis);
+	}
+
+	long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * Requests the state to be written, now or at the end of the window.
+	 */
+	void request() {
+		requested.incrementAndGet();
+		if ( windowMillis == 0 ) {
+			dirty.set(true);
+			flush();
+			return;
+		}
+		if ( dirty.getAndSet(true) ) {
+			// the pending write will pick this change up
+			return;
+		}
+		synchronized (this) {
+			if ( !stopped ) {
+				schedule();
+				return;
+			}
+		}
+		flush();
+	}
+
+	// callers must hold the monitor
+	private void schedule() {
+		if ( executor == null ) {
+			executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Lockable Resources write-behind");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		}
+		executor.schedule(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, windowMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes the state right away if there are unwritten changes.
+	 */
+	void flush() {
+		// cleared first, changes made while writing need another write
+		if ( !dirty.getAndSet(false) ) return;
+		try {
+			save.run();
+			written.incrementAndGet();
+		}
+		catch ( RuntimeException ex ) {
+			LOGGER.log(Level.SEVERE, "Unable to save configuration!", ex);
+		}
+	}
+
+	/**
+	 * Writes pending changes and stops the background thread.  Later
+	 * requests are written right away.
+	 */
+	void stop() {
+		ScheduledThreadPoolExecutor executor;
+		synchronized (this) {
+			stopped = true;
+			executor = this.executor;
+			this.executor = null;
+		}
+		if ( executor != null ) executor.shutdown();
+		flush();
+	}
+
+	boolean isDirty() {
+		return dirty.get();
+	}
+
+	/**
+	 * @return how many save requests did not need a write of their own
+	 */
+	long getCoalescedSaves() {
+		return requested.get() - written.get() - (dirty.get() ? 1 : 0);
+	}
+
+	long getWrites() {
+		return written.get();
+	}
+}
@@ -0,0 +1,110 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * Bounded LRU cache of compiled groovy resource expressions.
+ *
+ * Each expression is compiled once into a script class; every evaluation
+ * then gets a new script instance with its own binding.  Every expression
+ * is compiled by its own shell so that evicted classes can be unloaded.
+ */
+public class ExpressionCache {
+
+	private static final Logger LOGGER = Logger.getLogger(ExpressionCache.class.getName());
+
+	public static final int DEFAULT_SIZE = 100;
+
+	private final int maxSize;
+	private final Map<String,Class<? extends Script>> scripts;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong compileTimeNanos = new AtomicLong();
+
+	public ExpressionCache(int maxSize) {
+		this.maxSize = maxSize > 0 ? maxSize : DEFAULT_SIZE;
+		this.scripts = new LinkedHashMap<String,Class<? extends Script>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Class<? extends Script>> eldest) {
+				return size() > ExpressionCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns a new script instance for the given expression, compiling it
+	 * if it is not cached yet.
+	 *
+	 * @param expression groovy source, without the {@link Constants#GROOVY_LABEL_MARKER}
+	 * @param binding variables for this evaluation only
+	 * @return a script ready to be run
+	 */
+	public Script createScript(String expression, Binding binding) {
+		Class<? extends Script> scriptClass;
+		synchronized (scripts) {
+			scriptClass = scripts.get(expression);
+		}
+		if ( scriptClass != null ) {
+			hits.incrementAndGet();
+		}
+		else {
+			misses.incrementAndGet();
+			// compiled outside of the lock, a concurrent miss only costs a second compilation
+			long start = System.nanoTime();
+			scriptClass = new GroovyShell().parse(expression).getClass();
+			compileTimeNanos.addAndGet(System.nanoTime() - start);
+			LOGGER.log(Level.FINE, "Compiled groovy expression: {0}", expression);
+			synchronized (scripts) {
+				scripts.put(expression, scriptClass);
+			}
+		}
+		return InvokerHelper.createScript(scriptClass, binding);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getCompileTimeNanos() {
+		return compileTimeNanos.get();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int size() {
+		synchronized (scripts) {
+			return scripts.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (scripts) {
+			scripts.clear();
+		}
+	}
+}
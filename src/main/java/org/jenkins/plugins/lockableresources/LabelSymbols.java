@@ -0,0 +1,69 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global table of label names, so that resources store their labels as
+ * small int arrays and thousands of resources sharing a label share a
+ * single string for it.
+ *
+ * Ids are handed out in the order labels are first seen and are never
+ * reused; there are few distinct labels compared to resources, so the
+ * table is not cleaned up.
+ */
+final class LabelSymbols {
+
+	static final int[] NONE = new int[0];
+
+	private static final ConcurrentHashMap<String,Integer> ids = new ConcurrentHashMap<String,Integer>();
+	// grown under the class lock, entries below count never change
+	private static volatile String[] names = new String[64];
+	private static int count = 0;
+
+	private LabelSymbols() {
+	}
+
+	/**
+	 * @return the id of the label, registering it if it is new
+	 */
+	static int intern(String label) {
+		Integer id = ids.get(label);
+		if ( id != null ) return id;
+		synchronized (LabelSymbols.class) {
+			id = ids.get(label);
+			if ( id != null ) return id;
+			String[] names = LabelSymbols.names;
+			if ( count == names.length ) {
+				names = Arrays.copyOf(names, count * 2);
+			}
+			names[count] = label;
+			LabelSymbols.names = names;
+			ids.put(label, count);
+			return count++;
+		}
+	}
+
+	/**
+	 * @return the id of the label, or -1 if no resource ever had it
+	 */
+	static int lookup(String label) {
+		Integer id = ids.get(label);
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * @return the shared name of the label with the given id
+	 */
+	static String name(int id) {
+		return names[id];
+	}
+}
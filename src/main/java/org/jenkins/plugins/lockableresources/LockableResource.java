@@ -9,13 +9,13 @@
  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
 package org.jenkins.plugins.lockableresources;
 
-import com.thoughtworks.xstream.annotations.XStreamConverter;
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
-import com.thoughtworks.xstream.converters.collections.CollectionConverter;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
-import com.thoughtworks.xstream.mapper.Mapper;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
 import hudson.Extension;
 import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
@@ -28,11 +28,15 @@ import hudson.model.Queue.Task;
 import hudson.model.User;
 import hudson.tasks.Mailer.UserProperty;
 import hudson.util.FormValidation;
+import java.util.ArrayList;
+import java.util.AbstractSet;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -51,19 +55,33 @@ public class LockableResource
 
 	private static final Logger LOGGER = Logger.getLogger(LockableResource.class.getName());
 	public static final int NOT_QUEUED = 0;
-	private static final int QUEUE_TIMEOUT = 60 * 1000;
+	public static final int STATE_QUEUED = 1;
+	public static final int STATE_LOCKED = 2;
+	public static final int STATE_RESERVED = 4;
+
+	private static final ExpressionCache EXPRESSIONS = new ExpressionCache(
+			Integer.getInteger(LockableResource.class.getName() + ".expressionCacheSize",
+			                   ExpressionCache.DEFAULT_SIZE));
 
 	private final String name;
 	private final String description;
-	@XStreamConverter(value=LabelConverter.class)
-	private final LinkedHashSet<String> labels = new LinkedHashSet<String>();
-	private String reservedBy;
+	// ids from LabelSymbols in the order the labels were added, replaced on change
+	private volatile int[] labels = LabelSymbols.NONE;
+	private volatile String reservedBy;
 	private String properties;
 
-	private transient int queueItemId = NOT_QUEUED;
-	private transient String queueItemProject = null;
-	private transient AbstractBuild<?, ?> build = null;
-	private transient long queuingStarted = 0;
+	// state changes are guarded by the manager, but readers do not take any lock
+	private transient volatile int queueItemId = NOT_QUEUED;
+	private transient volatile String queueItemProject = null;
+	private transient volatile AbstractBuild<?, ?> build = null;
+	// System.nanoTime() when this resource was queued, tells queuings apart
+	private transient volatile long queuingStarted = 0;
+	// System.nanoTime() when the build locked this resource
+	private transient volatile long lockedSince = 0;
+	private transient volatile LockableResourcesManager manager = null;
+	private transient int id = -1;
+	private final transient Set<String> labelSet = new LabelSet();
+	private final transient Set<String> readOnlyLabelSet = Collections.unmodifiableSet(labelSet);
 
 	@DataBoundConstructor
 	public LockableResource(String name, String description, String labels, String reservedBy, String properties) {
@@ -71,7 +89,16 @@ public class LockableResource
 		if ( this.name == null ) throw new IllegalArgumentException("Resource must have a name!");
 		if ( this.name.contains(" ") ) throw new IllegalArgumentException("Resource names cannot contain spaces!");
 		this.description = Util.fixEmptyAndTrim(description);
-		this.labels.addAll(labelsFromString(Util.fixNull(labels).trim()));
+		this.labelSet.addAll(labelsFromString(Util.fixNull(labels).trim()));
+		this.reservedBy = Util.fixEmptyAndTrim(reservedBy);
+		this.properties = properties;
+	}
+
+	// for loading, the name was validated when the resource was created
+	private LockableResource(String name, String description, Collection<String> labels, String reservedBy, String properties) {
+		this.name = name;
+		this.description = description;
+		this.labelSet.addAll(labels);
 		this.reservedBy = Util.fixEmptyAndTrim(reservedBy);
 		this.properties = properties;
 	}
@@ -88,10 +115,12 @@ public class LockableResource
 
 	@Exported
 	public String getLabels() {
-		if ( labels != null && labels.size() > 0 ) {
+		// read once, a label edit replaces the array
+		int[] ls = labels;
+		if ( ls.length > 0 ) {
 			StringBuilder sb = new StringBuilder();
-			for ( String l : labels ) {
-				sb.append(" ").append(l);
+			for ( int id : ls ) {
+				sb.append(" ").append(LabelSymbols.name(id));
 			}
 			return sb.substring(1);
 		}
@@ -109,30 +138,28 @@ public class LockableResource
 	 * @return the internal set which stores the labels applied to this resource
 	 */
 	protected Set<String> getModifyableLabelSet() {
-		return labels;
+		return labelSet;
 	}
 	
 	public Set<String> getLabelSet() {
-		if ( labels == null ) return Collections.emptySet();
-		return Collections.unmodifiableSet(labels);
+		return readOnlyLabelSet;
 	}
 
 	public boolean isValidLabel(String candidate) {
 		if ( candidate.startsWith(Constants.GROOVY_LABEL_MARKER) ) {
 			throw new UnsupportedOperationException("Groovy expressions not supported by this method.");
 		}
-		return labels.contains(candidate);
+		return labelSet.contains(candidate);
 	}
 
 	public boolean expressionMatches(String expression, Map<String,String> params) {
 		Binding binding = new Binding(params);
 		binding.setVariable("resourceName", name);
 		binding.setVariable("resourceDescription", description);
-		binding.setVariable("resourceLabels", labels);
+		binding.setVariable("resourceLabels", readOnlyLabelSet);
 		String expressionToEvaluate = expression.replace(Constants.GROOVY_LABEL_MARKER, "");
-		GroovyShell shell = new GroovyShell(binding);
 		try {
-			Object result = shell.evaluate(expressionToEvaluate);
+			Object result = EXPRESSIONS.createScript(expressionToEvaluate, binding).run();
 			if (LOGGER.isLoggable(Level.FINE)) {
 				LOGGER.fine("Checked resource " + name + " for " + expression
 						+ " with " + binding + " -> " + result);
@@ -148,6 +175,13 @@ public class LockableResource
 		}
 	}
 
+	/**
+	 * @return the cache of compiled groovy expressions shared by all resources
+	 */
+	public static ExpressionCache getExpressionCache() {
+		return EXPRESSIONS;
+	}
+
 	@Exported
 	public String getReservedBy() {
 		return reservedBy;
@@ -160,9 +194,13 @@ public class LockableResource
 
 	@Exported
 	public String getReservedByEmail() {
-		if (reservedBy != null) {
+		return getEmail(reservedBy);
+	}
+
+	static String getEmail(String userName) {
+		if (userName != null) {
 			UserProperty email = null;
-			User user = Jenkins.getInstance().getUser(reservedBy);
+			User user = Jenkins.getInstance().getUser(userName);
 			if (user != null)
 				email = user.getProperty(UserProperty.class);
 			if (email != null)
@@ -189,9 +227,11 @@ public class LockableResource
 	}
 
 	public void unqueue() {
+		beforeStateChange();
 		queueItemId = NOT_QUEUED;
 		queueItemProject = null;
 		queuingStarted = 0;
+		afterStateChange();
 	}
 
 	@Exported
@@ -216,7 +256,10 @@ public class LockableResource
 	}
 
 	public void setBuild(AbstractBuild<?, ?> lockedBy) {
+		beforeStateChange();
 		this.build = lockedBy;
+		this.lockedSince = lockedBy != null ? System.nanoTime() : 0;
+		afterStateChange();
 	}
 
 	public Task getTask() {
@@ -229,35 +272,64 @@ public class LockableResource
 	}
 
 	public int getQueueItemId() {
-		this.validateQueuingTimeout();
 		return queueItemId;
 	}
 
 	public String getQueueItemProject() {
-		this.validateQueuingTimeout();
 		return this.queueItemProject;
 	}
 
+	/**
+	 * @return the System.nanoTime() at which this resource was queued,
+	 *         meaningless if not queued
+	 */
+	long getQueuingStarted() {
+		return queuingStarted;
+	}
+
+	/**
+	 * @return the System.nanoTime() at which the current build locked this
+	 *         resource, meaningless if not locked
+	 */
+	long getLockedSince() {
+		return lockedSince;
+	}
+
+	/**
+	 * Same as {@link #getQueueItemId()}, queuings are expired by the
+	 * manager in the background so both are plain reads.
+	 */
+	int peekQueueItemId() {
+		return queueItemId;
+	}
+
+	/**
+	 * Same as {@link #getQueueItemProject()}.
+	 */
+	String peekQueueItemProject() {
+		return queueItemProject;
+	}
+
 	public void setQueued(int queueItemId, String queueProjectName) {
+		beforeStateChange();
 		this.queueItemId = queueItemId;
-		this.queuingStarted = System.currentTimeMillis();
+		this.queuingStarted = System.nanoTime();
 		this.queueItemProject = queueProjectName;
-	}
-
-	private void validateQueuingTimeout() {
-		if (queuingStarted > 0) {
-			long now = System.currentTimeMillis();
-			if (now - queuingStarted > QUEUE_TIMEOUT)
-				unqueue();
-		}
+		afterStateChange();
+		LockableResourcesManager m = manager;
+		if ( m != null ) m.scheduleQueuingExpiry(this);
 	}
 
 	public void setReservedBy(String userName) {
+		beforeStateChange();
 		this.reservedBy = userName;
+		afterStateChange();
 	}
 
 	public void unReserve() {
+		beforeStateChange();
 		this.reservedBy = null;
+		afterStateChange();
 	}
 
 	public void reset() {
@@ -266,6 +338,52 @@ public class LockableResource
 		this.setBuild(null);
 	}
 
+	/**
+	 * Returns the current state as a combination of the STATE_* flags,
+	 * 0 meaning free.
+	 *
+	 * @return the state flags
+	 */
+	int getState() {
+		int state = 0;
+		if ( queueItemId != NOT_QUEUED ) state |= STATE_QUEUED;
+		if ( build != null ) state |= STATE_LOCKED;
+		if ( reservedBy != null ) state |= STATE_RESERVED;
+		return state;
+	}
+
+	/**
+	 * Attaches this resource to the manager which keeps track of its state
+	 * transitions, or detaches it when given null.
+	 *
+	 * @param manager the manager which owns this resource
+	 */
+	void setManager(LockableResourcesManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * @return the dense id assigned by the manager for the current
+	 *         configuration, or -1
+	 */
+	int getId() {
+		return id;
+	}
+
+	void setId(int id) {
+		this.id = id;
+	}
+
+	private void beforeStateChange() {
+		LockableResourcesManager m = manager;
+		if ( m != null ) m.unindexState(this);
+	}
+
+	private void afterStateChange() {
+		LockableResourcesManager m = manager;
+		if ( m != null ) m.indexState(this);
+	}
+
 	@Override
 	public String toString() {
 		return name;
@@ -322,28 +440,180 @@ public class LockableResource
 		}
 	}
 
-	public static class LabelConverter extends CollectionConverter {
-		public LabelConverter(Mapper mapper) {
-			super(mapper);
+	/**
+	 * The labels as a set of strings, backed by the label ids.  Changes
+	 * replace the id array, so readers never see it half way modified.
+	 */
+	private class LabelSet extends AbstractSet<String> {
+
+		@Override
+		public Iterator<String> iterator() {
+			final int[] ids = labels;
+			return new Iterator<String>() {
+				private int next = 0;
+
+				public boolean hasNext() {
+					return next < ids.length;
+				}
+
+				public String next() {
+					if ( next >= ids.length ) throw new NoSuchElementException();
+					return LabelSymbols.name(ids[next++]);
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return labels.length;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if ( !(o instanceof String) ) return false;
+			int id = LabelSymbols.lookup((String)o);
+			return id >= 0 && indexOf(labels, id) >= 0;
 		}
-		
+
 		@Override
+		public boolean add(String label) {
+			int id = LabelSymbols.intern(label);
+			synchronized (this) {
+				int[] ids = labels;
+				if ( indexOf(ids, id) >= 0 ) return false;
+				int[] updated = Arrays.copyOf(ids, ids.length + 1);
+				updated[ids.length] = id;
+				labels = updated;
+				return true;
+			}
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if ( !(o instanceof String) ) return false;
+			int id = LabelSymbols.lookup((String)o);
+			if ( id < 0 ) return false;
+			synchronized (this) {
+				int[] ids = labels;
+				int i = indexOf(ids, id);
+				if ( i < 0 ) return false;
+				int[] updated = new int[ids.length - 1];
+				System.arraycopy(ids, 0, updated, 0, i);
+				System.arraycopy(ids, i + 1, updated, i, updated.length - i);
+				labels = updated;
+				return true;
+			}
+		}
+
+		@Override
+		public void clear() {
+			synchronized (this) {
+				labels = LabelSymbols.NONE;
+			}
+		}
+	}
+
+	private static int indexOf(int[] ids, int id) {
+		for ( int i = 0; i < ids.length; i++ ) {
+			if ( ids[i] == id ) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads and writes resources field by field instead of through
+	 * reflection, which makes loading large pools much faster.  The format
+	 * is the one the reflection based converter used, labels are written
+	 * as a single string and read in either form.  Jenkins' XStream picks
+	 * it up by its name.
+	 */
+	public static class ConverterImpl implements Converter {
+
+		public boolean canConvert(Class type) {
+			return type == LockableResource.class;
+		}
+
+		public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+			LockableResource r = (LockableResource)source;
+			writeField(writer, "name", r.name);
+			writeField(writer, "description", r.description);
+			writeField(writer, "labels", r.getLabels());
+			writeField(writer, "reservedBy", r.reservedBy);
+			writeField(writer, "properties", r.properties);
+		}
+
+		private static void writeField(HierarchicalStreamWriter writer, String field, String value) {
+			if ( value == null ) return;
+			writer.startNode(field);
+			writer.setValue(value);
+			writer.endNode();
+		}
+
 		public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
-			LinkedHashSet<String> labels;
-			String labelString = reader.getValue();
-			if ( labelString != null && !reader.hasMoreChildren() ) {
-				labels = new LinkedHashSet<String>();
-				labels.addAll(labelsFromString(labelString.trim()));
+			String name = null;
+			String description = null;
+			List<String> labels = Collections.emptyList();
+			String reservedBy = null;
+			String properties = null;
+			while ( reader.hasMoreChildren() ) {
+				reader.moveDown();
+				String field = reader.getNodeName();
+				if ( field.equals("labels") ) {
+					labels = readLabels(reader);
+				}
+				else {
+					// unknown fields, like the transient ones of old versions, are skipped
+					String value = reader.getValue();
+					if ( field.equals("name") ) name = value;
+					else if ( field.equals("description") ) description = value;
+					else if ( field.equals("reservedBy") ) reservedBy = value;
+					else if ( field.equals("properties") ) properties = value;
+				}
+				reader.moveUp();
 			}
-			else {
-				labels = (LinkedHashSet<String>)super.unmarshal(reader, context);
+			if ( name == null ) throw new ConversionException("Resource must have a name!");
+			return new LockableResource(name, description, labels, reservedBy, properties);
+		}
+
+		private static List<String> readLabels(HierarchicalStreamReader reader) {
+			if ( !reader.hasMoreChildren() ) {
+				return labelsFromString(Util.fixNull(reader.getValue()));
+			}
+			List<String> labels = new ArrayList<String>();
+			while ( reader.hasMoreChildren() ) {
+				reader.moveDown();
+				labels.add(reader.getValue());
+				reader.moveUp();
 			}
 			return labels;
 		}
 	}
-	
+
+	// same as splitting the trimmed string at RESOURCES_SPLIT_REGEX, without the regex
 	private static List<String> labelsFromString( String labelString ) {
-		if ( labelString.length() <= 0 ) return Collections.emptyList();
-		return Arrays.asList(labelString.split(RESOURCES_SPLIT_REGEX));
+		List<String> labels = null;
+		int length = labelString.length();
+		int start = -1;
+		for ( int i = 0; i <= length; i++ ) {
+			if ( i < length && !isSeparator(labelString.charAt(i)) ) {
+				if ( start < 0 ) start = i;
+			}
+			else if ( start >= 0 ) {
+				if ( labels == null ) labels = new ArrayList<String>(4);
+				labels.add(labelString.substring(start, i));
+				start = -1;
+			}
+		}
+		if ( labels == null ) return Collections.emptyList();
+		return labels;
+	}
+
+	// the characters matched by \s
+	private static boolean isSeparator( char c ) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
 	}
 }
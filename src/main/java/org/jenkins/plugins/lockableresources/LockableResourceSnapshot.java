@@ -0,0 +1,118 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import hudson.model.AbstractBuild;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Immutable copy of the state of one {@link LockableResource}.
+ *
+ * Exports the same properties as the resource itself.
+ */
+@ExportedBean(defaultVisibility = 999)
+public class LockableResourceSnapshot {
+
+	private final LockableResource resource;
+	private final String name;
+	private final String description;
+	private final String labels;
+	private final String reservedBy;
+	private final AbstractBuild<?, ?> build;
+	private final int queueItemId;
+	private final String queueItemProject;
+
+	LockableResourceSnapshot(LockableResource resource) {
+		this.resource = resource;
+		this.name = resource.getName();
+		this.description = resource.getDescription();
+		this.labels = resource.getLabels();
+		this.reservedBy = resource.getReservedBy();
+		this.build = resource.getBuild();
+		this.queueItemId = resource.getQueueItemId();
+		this.queueItemProject = resource.getQueueItemProject();
+	}
+
+	/**
+	 * @return the live resource this snapshot was taken from
+	 */
+	public LockableResource getResource() {
+		return resource;
+	}
+
+	@Exported
+	public String getName() {
+		return name;
+	}
+
+	@Exported
+	public String getDescription() {
+		return description;
+	}
+
+	@Exported
+	public String getLabels() {
+		return labels;
+	}
+
+	@Exported
+	public String getReservedBy() {
+		return reservedBy;
+	}
+
+	@Exported
+	public boolean isReserved() {
+		return reservedBy != null;
+	}
+
+	@Exported
+	public String getReservedByEmail() {
+		return LockableResource.getEmail(reservedBy);
+	}
+
+	@Exported
+	public boolean isLocked() {
+		return build != null;
+	}
+
+	public AbstractBuild<?, ?> getBuild() {
+		return build;
+	}
+
+	@Exported
+	public String getBuildName() {
+		if (build != null)
+			return build.getFullDisplayName();
+		else
+			return null;
+	}
+
+	public boolean isQueued() {
+		return queueItemId != LockableResource.NOT_QUEUED;
+	}
+
+	public int getQueueItemId() {
+		return queueItemId;
+	}
+
+	public String getQueueItemProject() {
+		return queueItemProject;
+	}
+
+	public boolean isFree() {
+		return !isLocked() && !isQueued() && !isReserved();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
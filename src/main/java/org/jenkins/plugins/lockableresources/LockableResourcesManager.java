@@ -12,7 +12,10 @@ package org.jenkins.plugins.lockableresources;
 import hudson.Plugin;
 import hudson.Util;
 import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
 import hudson.model.Queue;
 import jenkins.model.Jenkins;
 
@@ -23,20 +26,29 @@ import java.util.Set;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.jenkins.plugins.lockableresources.Constants.*;
 import org.jenkins.plugins.lockableresources.actions.LockedResourcesBuildAction;
+import org.jenkins.plugins.lockableresources.queue.BlockedItems;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
 
 import net.sf.json.JSONObject;
@@ -47,21 +59,132 @@ public class LockableResourcesManager extends Plugin {
 	
 	private static final transient Random rand = new Random();
 	private static final Logger LOGGER = Logger.getLogger(LockableResourcesManager.class.getName());
+	static final int DEFAULT_QUEUE_TIMEOUT = 60;
 
 	private final LinkedHashSet<String> loadBalancingLabels;
 	private boolean useResourcesEvenly = false;
+	// seconds a queue item keeps its selected resources before it must lock them
+	private int queueTimeout = DEFAULT_QUEUE_TIMEOUT;
 	private final LinkedHashSet<LockableResource> resources;
 	private final LinkedHashMap<String,String> labelAliases;
 
-	private final transient Map<String,Set<LockableResource>> labelsCache = new TreeMap<String,Set<LockableResource>>();
-	private final transient Map<String,Set<LockableResource>> lbLabelsCache = new HashMap<String,Set<LockableResource>>();
-	private final transient Map<String,LockableResource> resourceMapCache = new HashMap<String,LockableResource>();
+	// rebuilt as a whole by buildCaches() and never modified once published
+	private transient volatile Map<String,Set<LockableResource>> labelsCache = new TreeMap<String,Set<LockableResource>>();
+	// ids of the resources in each load balancing group, that is by their
+	// first load balancing label, null meaning none of them
+	private transient volatile Map<String,ResourceIdSet> lbGroupsCache = new LinkedHashMap<String,ResourceIdSet>();
+	// the resources without any load balancing label, and their states
+	private transient volatile ResourceIdSet lbNoLabelIds = ResourceIdSet.EMPTY;
+	private transient volatile ResourceStateCounter lbNoLabelState = new ResourceStateCounter();
+	private transient volatile ResourceStateIndex stateIndex = ResourceStateIndex.empty();
+	private transient volatile Map<String,LockableResource> resourceMapCache = new HashMap<String,LockableResource>();
+	private transient volatile Map<String,ResourceStateCounter> labelStateCache = new HashMap<String,ResourceStateCounter>();
+	private transient volatile List<LockableResource> resourceListCache = Collections.emptyList();
+	private transient volatile Map<String,String> labelAliasesCache = Collections.emptyMap();
+
+	// updated on every state transition, guarded by indexLock
+	private final transient Map<AbstractBuild<?, ?>,Set<LockableResource>> buildIndex = new IdentityHashMap<AbstractBuild<?, ?>,Set<LockableResource>>();
+	private final transient Map<Integer,Set<LockableResource>> queueItemIndex = new HashMap<Integer,Set<LockableResource>>();
+	private final transient Map<String,Set<LockableResource>> projectIndex = new HashMap<String,Set<LockableResource>>();
+	private final transient Object indexLock = new Object();
+
+	/**
+	 * Guards the set of resources, their labels and the manager settings.
+	 * State changes of resources take the read lock plus the stripes of the
+	 * resources involved, configuration changes take the write lock.
+	 */
+	private final transient ReadWriteLock structureLock = new ReentrantReadWriteLock();
+	private final transient ResourceLocks resourceLocks = new ResourceLocks(
+			Integer.getInteger(LockableResourcesManager.class.getName() + ".lockStripes",
+			                   ResourceLocks.DEFAULT_STRIPES));
+	private final transient Object saveLock = new Object();
+	/**
+	 * Writes the configuration, either right away or, when a save delay
+	 * in milliseconds is configured, once per delay on a background thread.
+	 */
+	private final transient CoalescingSaver saver = new CoalescingSaver(new Runnable() {
+				public void run() {
+					saveNow();
+				}
+			},
+			Long.getLong(LockableResourcesManager.class.getName() + ".saveDelay", 0));
+	/**
+	 * Reservations, resets and label edits are appended to the journal
+	 * instead of saving the whole configuration when this is enabled.  The
+	 * journal is always replayed on load, in case it was enabled before.
+	 */
+	private static final boolean JOURNAL_ENABLED =
+			Boolean.getBoolean(LockableResourcesManager.class.getName() + ".journal");
+	private static final int JOURNAL_COMPACT_ENTRIES =
+			Integer.getInteger(LockableResourcesManager.class.getName() + ".journalCompactEntries", 1000);
+	private static final long JOURNAL_COMPACT_DELAY = 1000;
+	private transient volatile StateJournal journal = null;
+	// folds the journal into the configuration on a background thread
+	private final transient CoalescingSaver compactor = new CoalescingSaver(new Runnable() {
+				public void run() {
+					saveNow();
+				}
+			},
+			JOURNAL_COMPACT_DELAY);
+	// written shortly after builds lock or queue items select resources
+	private transient volatile OwnershipSnapshot ownership = null;
+	private transient volatile boolean ownershipRestored = false;
+	private final transient CoalescingSaver ownershipSaver = new CoalescingSaver(new Runnable() {
+				public void run() {
+					saveOwnership();
+				}
+			},
+			Math.max(1, Long.getLong(LockableResourcesManager.class.getName() + ".ownershipSaveDelay", 1000)));
+
+	// bumped on every state transition and configuration change
+	private final transient AtomicLong stateVersion = new AtomicLong();
+	// bumped on configuration changes only
+	private final transient AtomicLong configGeneration = new AtomicLong();
+	private transient volatile ResourcesSnapshot snapshot = null;
+	private final transient Object snapshotLock = new Object();
+	// writers holding stripes of resources they change, guarded by snapshotLock
+	private transient int changesInProgress = 0;
+
+	private final transient BlockedItems blockedItems = new BlockedItems();
+	private final transient LockableResourcesMetrics metrics = new LockableResourcesMetrics();
+	/**
+	 * Queue items needing at least this many resources reserve capacity
+	 * when refused, so that smaller ones cannot starve them; 0 disables it.
+	 */
+	private final transient BackfillScheduler backfill = new BackfillScheduler(
+			Integer.getInteger(LockableResourcesManager.class.getName() + ".backfillMinSize",
+			                   BackfillScheduler.DEFAULT_MIN_SIZE));
+	/**
+	 * When enabled, the free resources are assigned to all blocked queue
+	 * items at once, and each item only takes what it was assigned.
+	 */
+	private final transient BatchMatcher batchMatcher =
+			Boolean.getBoolean(LockableResourcesManager.class.getName() + ".batchMatching")
+			? new BatchMatcher()
+			: null;
+	// milliseconds between two batch assignments, see BatchMatchingWork
+	static final long BATCH_INTERVAL =
+			Long.getLong(LockableResourcesManager.class.getName() + ".batchInterval", BatchMatcher.DEFAULT_INTERVAL);
+	/**
+	 * The changes of the resources, followed by remote API clients as
+	 * server-sent events.
+	 */
+	private final transient ChangeFeed changes = new ChangeFeed(
+			Integer.getInteger(LockableResourcesManager.class.getName() + ".changeFeedSize", 1024),
+			Integer.getInteger(LockableResourcesManager.class.getName() + ".changeFeedClientBuffer", 256),
+			Integer.getInteger(LockableResourcesManager.class.getName() + ".changeFeedClients", 32));
+	private final transient QueuingExpiry queuingExpiry = new QueuingExpiry(new QueuingExpiry.Callback() {
+				public void expire(LockableResource r) {
+					expireQueuing(r);
+				}
+			});
 
 	public LockableResourcesManager() {
 		super();
 		resources = new LinkedHashSet<LockableResource>();
 		loadBalancingLabels = new LinkedHashSet<String>();
 		labelAliases = new LinkedHashMap<String, String>();
+		addGauges();
 		try {
 			load();
 		}
@@ -71,8 +194,210 @@ public class LockableResourcesManager extends Plugin {
 		}
 	}
 
+	/**
+	 * Creates a manager for the given configuration, without loading or
+	 * saving it.  Meant for tests, which run without Jenkins.
+	 */
+	LockableResourcesManager(Collection<LockableResource> resources,
+	                         Collection<String> loadBalancingLabels,
+	                         Map<String,String> labelAliases) {
+		super();
+		this.resources = new LinkedHashSet<LockableResource>(resources);
+		this.loadBalancingLabels = new LinkedHashSet<String>(loadBalancingLabels);
+		this.labelAliases = new LinkedHashMap<String, String>(labelAliases);
+		addGauges();
+		rebuildCaches();
+	}
+
+	private void addGauges() {
+		metrics.addGauge("lockable_resources_utilization",
+				"Fraction of the resources which are queued, locked or reserved.",
+				new LockableResourcesMetrics.Gauge() {
+					public double value() {
+						ResourceStateIndex index = stateIndex;
+						return index.size() > 0 ? (double)index.busy() / index.size() : 0;
+					}
+				});
+		metrics.addGauge("lockable_resources_backfill_reservations",
+				"Large queue items holding a reservation.",
+				new LockableResourcesMetrics.Gauge() {
+					public double value() {
+						return backfill.size();
+					}
+				});
+		metrics.addGauge("lockable_resources_event_clients",
+				"Clients following the changes of the resources.",
+				new LockableResourcesMetrics.Gauge() {
+					public double value() {
+						return changes.getSubscriptions();
+					}
+				});
+	}
+
+	/**
+	 * Rebuilds all caches from scratch, as a reconfiguration does.
+	 */
+	void rebuildCaches() {
+		structureLock.writeLock().lock();
+		try {
+			buildCaches();
+		}
+		finally {
+			structureLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return all resources, in configuration order; the list is replaced
+	 *         rather than changed on reconfiguration
+	 */
 	public Collection<LockableResource> getResources() {
-		return resources;
+		return resourceListCache;
+	}
+
+	/**
+	 * Returns an immutable view of all resources, labels and free amounts.
+	 * The view is published by the writers, so reading it takes no lock.
+	 * It never shows a reset or a bulk batch half applied: a new view is
+	 * only taken once no change is in progress, by the last writer while it
+	 * still holds its stripes.
+	 *
+	 * @return the current snapshot
+	 */
+	public ResourcesSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Takes the stripes of the resources a writer is about to change, and
+	 * holds back new snapshots until {@link #unlockAfterChange} is called.
+	 */
+	private Lock[] lockForChange(Collection<LockableResource> resources) {
+		Lock[] held = resourceLocks.lock(resources);
+		synchronized (snapshotLock) {
+			changesInProgress++;
+		}
+		return held;
+	}
+
+	/**
+	 * Publishes a new snapshot if this was the last change in progress,
+	 * then gives back the stripes.
+	 */
+	private void unlockAfterChange(Lock[] held) {
+		try {
+			synchronized (snapshotLock) {
+				changesInProgress--;
+				publishSnapshot();
+			}
+		}
+		finally {
+			resourceLocks.unlock(held);
+		}
+	}
+
+	// takes a new snapshot unless a change is in progress, whose writer publishes it then
+	private void publishSnapshot() {
+		synchronized (snapshotLock) {
+			if ( changesInProgress > 0 ) return;
+			long version = stateVersion.get();
+			ResourcesSnapshot current = snapshot;
+			if ( current == null || current.getVersion() != version ) {
+				snapshot = new ResourcesSnapshot(version, resourceListCache, labelStateCache, labelAliasesCache);
+			}
+		}
+	}
+
+	/**
+	 * @return a number which changes whenever any resource changes state or
+	 *         the configuration changes
+	 */
+	public long getStateVersion() {
+		return stateVersion.get();
+	}
+
+	/**
+	 * @return a number which changes whenever resources, their labels, the
+	 *         label aliases or the load balancing settings change
+	 */
+	public long getConfigGeneration() {
+		return configGeneration.get();
+	}
+
+	/**
+	 * @return the queue items currently blocked waiting for resources
+	 */
+	public BlockedItems getBlockedItems() {
+		return blockedItems;
+	}
+
+	/**
+	 * @return the changes of the resources since startup
+	 */
+	public ChangeFeed getChangeFeed() {
+		return changes;
+	}
+
+	public LockableResourcesMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the ids and states of the current configuration
+	 */
+	ResourceStateIndex getStateIndex() {
+		return stateIndex;
+	}
+
+	BackfillScheduler getBackfillScheduler() {
+		return backfill;
+	}
+
+	/**
+	 * @param queueItemId a blocked queue item
+	 * @return true if batch matching is enabled and the current assignment
+	 *         gave the item nothing, so there is no point in trying to queue it
+	 */
+	public boolean isLeftOutOfBatch(int queueItemId) {
+		if ( batchMatcher == null ) return false;
+		BatchMatcher.Plan plan = batchMatcher.getPlan(configGeneration.get());
+		return plan != null && plan.isLeftOut(queueItemId);
+	}
+
+	/**
+	 * @return true if the free resources are assigned to the blocked queue
+	 *         items at once
+	 */
+	boolean isBatchMatching() {
+		return batchMatcher != null;
+	}
+
+	/**
+	 * Assigns the free resources to the blocked queue items again, and
+	 * publishes the assignment the dispatcher reads.  Runs periodically and
+	 * right after resources were released, rather than on every dispatcher
+	 * call.
+	 */
+	void replanBatch() {
+		if ( batchMatcher == null ) return;
+		structureLock.readLock().lock();
+		try {
+			batchMatcher.replan(stateIndex, configGeneration.get(), blockedItems, System.nanoTime());
+		}
+		finally {
+			structureLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Forgets a queue item which left the queue without getting its
+	 * resources, including the capacity it reserved.
+	 *
+	 * @param queueItemId the item
+	 */
+	public void forgetQueueItem(int queueItemId) {
+		blockedItems.unblock(queueItemId);
+		backfill.cancel(queueItemId, System.nanoTime());
 	}
 
 	public String getLoadBalancingLabels() {
@@ -92,9 +417,21 @@ public class LockableResourcesManager extends Plugin {
 		return useResourcesEvenly;
 	}
 
+	/**
+	 * @return the seconds after which resources selected for a queue item
+	 *         are given back if the item did not lock them
+	 */
+	public int getQueueTimeout() {
+		return queueTimeout > 0 ? queueTimeout : DEFAULT_QUEUE_TIMEOUT;
+	}
+
+	void setQueueTimeout(int queueTimeout) {
+		this.queueTimeout = queueTimeout;
+	}
+
 	public List<LockableResource> getResourcesFromProject(String fullName) {
 		List<LockableResource> matching = new ArrayList<LockableResource>();
-		for (LockableResource r : resources) {
+		for (LockableResource r : copyIndexed(projectIndex, fullName)) {
 			String rName = r.getQueueItemProject();
 			if (rName != null && rName.equals(fullName)) {
 				matching.add(r);
@@ -103,17 +440,28 @@ public class LockableResourcesManager extends Plugin {
 		return matching;
 	}
 
-	public List<LockableResource> getResourcesFromBuild(AbstractBuild<?, ?> build) {
+	public List<LockableResource> getResourcesFromQueueItem(int queueItemId) {
 		List<LockableResource> matching = new ArrayList<LockableResource>();
-		for (LockableResource r : resources) {
-			AbstractBuild<?, ?> rBuild = r.getBuild();
-			if (rBuild != null && rBuild == build) {
+		for (LockableResource r : copyIndexed(queueItemIndex, queueItemId)) {
+			if (r.isQueuedByTask(queueItemId)) {
 				matching.add(r);
 			}
 		}
 		return matching;
 	}
 
+	public List<LockableResource> getResourcesFromBuild(AbstractBuild<?, ?> build) {
+		return copyIndexed(buildIndex, build);
+	}
+
+	private <K> List<LockableResource> copyIndexed(Map<K,Set<LockableResource>> index, K key) {
+		synchronized (indexLock) {
+			Set<LockableResource> indexed = index.get(key);
+			if ( indexed == null ) return new ArrayList<LockableResource>();
+			return new ArrayList<LockableResource>(indexed);
+		}
+	}
+
 	public boolean isValidLabel(String label)
 	{
 		if (label == null) return false;
@@ -127,34 +475,49 @@ public class LockableResourcesManager extends Plugin {
 
 	public Map<String,String> getLabelAliases()
 	{
-		return Collections.unmodifiableMap(labelAliases);
+		return labelAliasesCache;
 	}
 
 	public String dereferenceLabelAlias( String labelAlias ) {
-		if ( labelsCache.containsKey(labelAlias) && labelAliases.containsKey(labelAlias) ) {
-			return labelAliases.get(labelAlias);
+		if ( labelsCache.containsKey(labelAlias) ) {
+			return labelAliasesCache.get(labelAlias);
 		}
 		return null;
 	}
 
 	public int getFreeResourceAmount(String label)
 	{
-		int free = 0;
-		for ( LockableResource r : labelsCache.get(Util.fixEmpty(label)) ) {
-			if ( r.isFree() ) free++;
-		}
-		return free;
+		ResourceStateCounter counter = getLabelState(label);
+		return counter != null ? counter.getFree() : 0;
 	}
 
-	public List<LockableResource> getResourcesWithLabel(String label) {
-		if ( labelsCache.containsKey(label) && labelAliases.containsKey(label) ) {
+	/**
+	 * @param label a label or label alias
+	 * @return the resource state counters for the label, or null if the label is not known
+	 */
+	public ResourceStateCounter getLabelState(String label)
+	{
+		label = Util.fixEmpty(label);
+		if ( label == null ) return null;
+		return labelStateCache.get(label);
+	}
+
+	/**
+	 * Looks up the resources with the given label, or with the label the
+	 * given alias stands for.
+	 *
+	 * @param label a label or label alias
+	 * @return a shared, unmodifiable set in configuration order; empty if
+	 *         the label is not known
+	 */
+	public Set<LockableResource> getResourcesWithLabel(String label) {
+		Map<String,Set<LockableResource>> labelsCache = this.labelsCache;
+		if ( labelsCache.containsKey(label) && labelAliasesCache.containsKey(label) ) {
 			LOGGER.log(Level.FINER, "Coverting label alias {0} to real label.", label);
-			label = labelAliases.get(label);
-		}
-		List<LockableResource> found = new ArrayList<LockableResource>();
-		for (LockableResource r : this.resources) {
-			if (r.isValidLabel(label)) found.add(r);
+			label = labelAliasesCache.get(label);
 		}
+		Set<LockableResource> found = labelsCache.get(label);
+		if ( found == null ) return Collections.emptySet();
 		return found;
 	}
 
@@ -167,7 +530,16 @@ public class LockableResourcesManager extends Plugin {
 	 */
 	public List<LockableResource> getResourcesForExpression(String expr, Map<String,String> params) {
 		List<LockableResource> found = new ArrayList<LockableResource>();
-		for (LockableResource r : this.resources) {
+		List<LockableResource> all;
+		structureLock.readLock().lock();
+		try {
+			all = new ArrayList<LockableResource>(this.resources);
+		}
+		finally {
+			structureLock.readLock().unlock();
+		}
+		// evaluated without holding any lock, this may take a while
+		for (LockableResource r : all) {
 			if (r.expressionMatches(expr, params)) found.add(r);
 		}
 		return found;
@@ -177,116 +549,171 @@ public class LockableResourcesManager extends Plugin {
 		return resourceMapCache.get(resourceName);
 	}
 
-	public synchronized Collection<LockableResource> queue(LockableResourcesStruct requiredResources,
-	                                                       Queue.Item queueItem,
-	                                                       String queueItemProject,
-	                                                       int numRequired ) { // 0 means all
-		// using a TreeSet here to ensure consistant ordering in logging/messaging output
-		Set<LockableResource> selected = new TreeSet<LockableResource>();
+	/**
+	 * Looks up the dense ids of the given resources, which are only valid
+	 * until the configuration changes, see {@link #getConfigGeneration()}.
+	 *
+	 * @param resources resources of the current configuration, others are ignored
+	 * @return their ids
+	 */
+	public ResourceIdSet getResourceIds(Collection<LockableResource> resources) {
+		return stateIndex.idsOf(resources);
+	}
 
+	public Collection<LockableResource> queue(LockableResourcesStruct requiredResources,
+	                                          Queue.Item queueItem,
+	                                          String queueItemProject,
+	                                          int numRequired ) { // 0 means all
 		// ensure there is a resources build action available to store state on
 		LockedResourcesBuildAction action = queueItem.getAction(LockedResourcesBuildAction.class);
 		if ( action == null ) {
 			action = new LockedResourcesBuildAction();
 			queueItem.addAction(action);
 		}
+		return queue(requiredResources, queueItem.id, action, queueItemProject, numRequired);
+	}
+
+	/**
+	 * Same as {@link #queue(LockableResourcesStruct, Queue.Item, String, int)},
+	 * for callers which keep the build action of the queue item themselves.
+	 */
+	Collection<LockableResource> queue(LockableResourcesStruct requiredResources,
+	                                   int queueItemId,
+	                                   LockedResourcesBuildAction action,
+	                                   String queueItemProject,
+	                                   int numRequired ) {
+		long waitStart = System.nanoTime();
+		structureLock.readLock().lock();
+		try {
+			Set<LockableResource> involved = new HashSet<LockableResource>(requiredResources.required);
+			involved.addAll(getResourcesFromQueueItem(queueItemId));
+			Lock[] held = lockForChange(involved);
+			metrics.recordLockWait(System.nanoTime() - waitStart);
+			try {
+				return doQueue(requiredResources, queueItemId, action, queueItemProject, numRequired);
+			}
+			finally {
+				unlockAfterChange(held);
+			}
+		}
+		finally {
+			structureLock.readLock().unlock();
+		}
+	}
+
+	// callers must hold the stripes of all required and already queued resources
+	private Collection<LockableResource> doQueue(LockableResourcesStruct requiredResources,
+	                                             int queueItemId,
+	                                             LockedResourcesBuildAction action,
+	                                             String queueItemProject,
+	                                             int numRequired ) {
+		// using a TreeSet here to ensure consistant ordering in logging/messaging output
+		Set<LockableResource> selected = new TreeSet<LockableResource>();
 
 		// check for any already queue resources
-		checkCurrentResourcesStatus(selected, action.matchedResources, queueItem.id);
+		checkCurrentResourcesStatus(selected, action.matchedResources, queueItemId);
 
-		ArrayList<LockableResource> candidates = new ArrayList<LockableResource>(requiredResources.required);
-		LOGGER.log(Level.FINEST, "Candidates: {0}", candidates);
+		ResourceStateIndex index = this.stateIndex;
+		long generation = configGeneration.get();
+		ResourceIdSet candidates = requiredResources.getRequiredIds(this);
+		LOGGER.log(Level.FINEST, "Candidates: {0}", requiredResources.required);
 
 		numRequired = numRequired <= 0 ? candidates.size() : numRequired;
 		int totalNumRequired = numRequired;
+		// whether an older reservation held back some of the candidates
+		boolean contended = false;
+		BatchMatcher.Plan plan = null;
 
 		// check that all currently selected resources are still candidates
-		// also remove any already selected resources from the candidates list
 		Iterator<LockableResource> it = selected.iterator();
 		while ( it.hasNext() ) {
 			LockableResource selectedResource = it.next();
-			if ( numRequired > 0 && candidates.remove(selectedResource) ) {
+			if ( numRequired > 0 && candidates.contains(selectedResource.getId()) ) {
 				numRequired--;
 			}
 			else {
 				it.remove();
 				selectedResource.unqueue();
+				changes.publish(ChangeFeed.UNQUEUED, selectedResource.getName(), queueItemProject);
 			}
 		}
+		Set<LockableResource> alreadyQueued = new HashSet<LockableResource>(selected);
 
 		if ( numRequired <= 0 ) {
 			LOGGER.log(Level.FINE, "Required resources already queued: {0}", selected);
 		}
 		else {
-			List<LockableResource> availableCandidates = new ArrayList<LockableResource>();
-			for (LockableResource rs : candidates) {
-				if (!rs.isReserved() && !rs.isLocked() && !rs.isQueued())
-					availableCandidates.add(rs);
+			// the already selected ones are queued, so not part of this
+			long[] available = index.free(candidates);
+			if ( batchMatcher != null ) {
+				plan = batchMatcher.getPlan(generation);
+				if ( plan != null ) available = plan.restrict(queueItemId, available);
+			}
+			// the batch assignment already served the older items first
+			if ( backfill.isEnabled() && (plan == null || plan.getAssigned(queueItemId) == null) ) {
+				long[] allowed = backfill.allowed(index, generation, queueItemId, queueItemProject,
+				                                  available, System.nanoTime());
+				contended = allowed != available;
+				available = allowed;
+			}
+			if ( LOGGER.isLoggable(Level.FINEST) ) {
+				LOGGER.log(Level.FINEST, "Available candidates: {0}", new ResourceIdSet(available.clone()));
 			}
-			LOGGER.log(Level.FINEST, "Available candidates: {0}", availableCandidates);
 
 			// only use fancy logic if we don't need to lock all of them
-			if ( numRequired < candidates.size() ) {
+			if ( numRequired < candidates.size() - selected.size() ) {
 				LOGGER.log(Level.FINEST, "Selecting {0} resources.", numRequired);
 				if ( !loadBalancingLabels.isEmpty() ) {
 					LOGGER.log(Level.FINEST, "Load balancing labels: {0}", loadBalancingLabels);
 					// now filter based on the load balancing labels parameter
-					// first break our available candidates into a list for each LB label
-					Map<String,List<LockableResource>> groups = new HashMap<String,List<LockableResource>>(loadBalancingLabels.size() + 1);
-					for (LockableResource r : availableCandidates) {
-						boolean foundLabel = false;
-						for ( String label : loadBalancingLabels ) {
-							if ( r.isValidLabel(label) ) {
-								foundLabel = true;
-								if ( !groups.containsKey(label) ) groups.put(label, new ArrayList<LockableResource>());
-								groups.get(label).add(r);
-								break;
-							}
-						}
-						if ( !foundLabel ) {
-							if ( !groups.containsKey(null) ) groups.put(null, new ArrayList<LockableResource>());
-							groups.get(null).add(r);
-						}
+					// first break our available candidates into a bitmap for each LB label
+					Map<String,long[]> groups = new LinkedHashMap<String,long[]>();
+					for ( Map.Entry<String,ResourceIdSet> e : lbGroupsCache.entrySet() ) {
+						long[] group = ResourceIdSet.and(available, e.getValue());
+						if ( ResourceIdSet.nextSetBit(group, 0) >= 0 ) groups.put(e.getKey(), group);
 					}
-					LOGGER.log(Level.FINER, "Load Balancing Groups: {0}", groups);
+					LOGGER.log(Level.FINER, "Load Balancing Groups: {0}", groups.keySet());
 					// now repeatedly select a candidate resource from the label with the lowest current usage
-					boolean resourcesLeft = true;
-					while ( selected.size() < totalNumRequired && resourcesLeft ) {
-						resourcesLeft = false;
-						double lowestUsage = 2;
-						String lowestUsageLabel = null;
-						for ( String label : groups.keySet() ) {
-							if ( groups.get(label).size() > 0 ) {
-							double usage = calculateLbLabelUsage(label);
-								if ( usage < lowestUsage ) {
-									resourcesLeft = true;
-									lowestUsage = usage;
-									lowestUsageLabel = label;
-								}
-							}
+					PriorityQueue<LbGroup> lowestUsage = new PriorityQueue<LbGroup>(groups.size() + 1);
+					for ( Map.Entry<String,long[]> e : groups.entrySet() ) {
+						lowestUsage.add(new LbGroup(e.getKey(), lowestUsage.size(), e.getValue(), calculateLbLabelUsage(e.getKey())));
+					}
+					while ( selected.size() < totalNumRequired && !lowestUsage.isEmpty() ) {
+						LbGroup group = lowestUsage.poll();
+						double usage = calculateLbLabelUsage(group.label);
+						if ( usage > group.usage ) {
+							// a resource picked from another group has this label too
+							group.usage = usage;
+							lowestUsage.add(group);
+							continue;
 						}
-						LOGGER.log(Level.FINEST, "Lowest usage label: {0}", lowestUsageLabel);
-						if ( resourcesLeft ) {
-							List<LockableResource> group = groups.get(lowestUsageLabel);
-							LockableResource r = selectResourceToUse(group);
-							group.remove(r);
-							selected.add(r);
-							r.setQueued(queueItem.id, queueItemProject);
-							LOGGER.log(Level.FINER, "Queued resource lock on: {0}", r);
+						LOGGER.log(Level.FINEST, "Lowest usage label: {0}", group.label);
+						int id = selectResourceToUse(group.available, group.left--);
+						ResourceIdSet.clear(group.available, id);
+						LockableResource r = index.get(id);
+						selected.add(r);
+						r.setQueued(queueItemId, queueItemProject);
+						LOGGER.log(Level.FINER, "Queued resource lock on: {0}", r);
+						if ( group.left > 0 ) {
+							group.usage = calculateLbLabelUsage(group.label);
+							lowestUsage.add(group);
 						}
 					}
 				}
 				else {
-					while ( selected.size() < totalNumRequired && availableCandidates.size() > 0 ) {
-						LockableResource r = selectResourceToUse(availableCandidates);
-						availableCandidates.remove(r);
-						selected.add(r);
+					int left = ResourceIdSet.cardinality(available);
+					while ( selected.size() < totalNumRequired && left > 0 ) {
+						int id = selectResourceToUse(available, left--);
+						ResourceIdSet.clear(available, id);
+						selected.add(index.get(id));
 					}
 				}
 			}
 			else {
 				LOGGER.log(Level.FINER, "Selecting all available specified resources.");
-				selected.addAll(availableCandidates);
+				for ( int id = ResourceIdSet.nextSetBit(available, 0); id >= 0; id = ResourceIdSet.nextSetBit(available, id + 1) ) {
+					selected.add(index.get(id));
+				}
 			}
 
 			LOGGER.log(Level.FINE, "Selected resources: {0}", selected);
@@ -299,25 +726,61 @@ public class LockableResourcesManager extends Plugin {
 			// just to be sure, clean up
 			for (LockableResource r : selected) {
 				    r.unqueue();
+				    if ( alreadyQueued.contains(r) ) {
+					    changes.publish(ChangeFeed.UNQUEUED, r.getName(), queueItemProject);
+				    }
 			}
+			if ( contended ) metrics.recordBackfill(false);
+			backfill.refused(queueItemId, candidates, generation, totalNumRequired, System.nanoTime());
 			return null;
 		}
 
+		if ( contended ) metrics.recordBackfill(true);
+		if ( plan != null ) plan.consumed(queueItemId);
+		long reserved = backfill.cancel(queueItemId, System.nanoTime());
+		if ( reserved >= 0 ) metrics.recordReservationWait(reserved);
+
 		LOGGER.log(Level.FINER, "Queuing locks for selected resources: {0}", selected);
 		action.matchedResources.clear();
 		for (LockableResource rsc : selected) {
-			rsc.setQueued(queueItem.id, queueItemProject);
+			rsc.setQueued(queueItemId, queueItemProject);
 			action.matchedResources.add(rsc.getName());
+			if ( !alreadyQueued.contains(rsc) ) {
+				changes.publish(ChangeFeed.QUEUED, rsc.getName(), queueItemProject);
+			}
 		}
 		return selected;
 	}
 
-	private LockableResource selectResourceToUse( List<LockableResource> resources ) {
+	// the available candidates of one load balancing group, ordered by usage
+	private static class LbGroup implements Comparable<LbGroup> {
+		final String label;
+		final int order;
+		final long[] available;
+		int left;
+		double usage;
+
+		LbGroup(String label, int order, long[] available, double usage) {
+			this.label = label;
+			this.order = order;
+			this.available = available;
+			this.left = ResourceIdSet.cardinality(available);
+			this.usage = usage;
+		}
+
+		public int compareTo(LbGroup other) {
+			int cmp = Double.compare(usage, other.usage);
+			return cmp != 0 ? cmp : order - other.order;
+		}
+	}
+
+	// picks one of the count ids set in the bitmap
+	private int selectResourceToUse( long[] available, int count ) {
 		if ( useResourcesEvenly ) {
-			return resources.get(rand.nextInt(resources.size()));
+			return ResourceIdSet.nthSetBit(available, rand.nextInt(count));
 		}
 		//else
-			return resources.get(0);
+			return ResourceIdSet.nextSetBit(available, 0);
 	}
 
 	// Adds already selected (in previous queue round) resources to 'selected'
@@ -325,74 +788,396 @@ public class LockableResourcesManager extends Plugin {
 	private void checkCurrentResourcesStatus(Collection<LockableResource> selected,
 	                                         Collection<String> matchedResources,
 	                                         int queueId) {
-		for (String rName : matchedResources) {
-			for (LockableResource r : resources) {
-				if ( r.getName().equals(rName) ) {
-					if ( r.isQueuedByTask(queueId) ) {
-						selected.add(r);
-					}
-					break;
-				}
+		for (LockableResource r : getResourcesFromQueueItem(queueId)) {
+			if ( matchedResources.contains(r.getName()) ) {
+				selected.add(r);
 			}
 		}
 	}
 
-	public synchronized boolean lock(Collection<String> resourceNames, AbstractBuild<?, ?> build) {
-		ArrayList<LockableResource> resourcesToLock = new ArrayList<LockableResource>(resourceNames.size());
-		for (String rName : resourceNames) {
-			LockableResource r = fromName(rName);
-			if (r == null || r.isReserved() || r.isLocked()) {
-				return false;
+	public boolean lock(Collection<String> resourceNames, AbstractBuild<?, ?> build) {
+		long waitStart = System.nanoTime();
+		structureLock.readLock().lock();
+		try {
+			ArrayList<LockableResource> resourcesToLock = new ArrayList<LockableResource>(resourceNames.size());
+			for (String rName : resourceNames) {
+				LockableResource r = fromName(rName);
+				if (r == null) {
+					return false;
+				}
+				resourcesToLock.add(r);
+			}
+			Lock[] held = lockForChange(resourcesToLock);
+			metrics.recordLockWait(System.nanoTime() - waitStart);
+			try {
+				for (LockableResource r : resourcesToLock) {
+					if (r.isReserved() || r.isLocked()) {
+						return false;
+					}
+				}
+				String buildName = build != null ? build.getFullDisplayName() : null;
+				for (LockableResource r : resourcesToLock) {
+					// without a build this only gives up the queuing
+					if ( build != null ) {
+						changes.publish(ChangeFeed.LOCKED, r.getName(), buildName);
+					}
+					else if ( r.peekQueueItemId() != LockableResource.NOT_QUEUED ) {
+						changes.publish(ChangeFeed.UNQUEUED, r.getName(), r.peekQueueItemProject());
+					}
+					r.unqueue();
+					r.setBuild(build);
+				}
+				return true;
+			}
+			finally {
+				unlockAfterChange(held);
 			}
-			resourcesToLock.add(r);
 		}
-		for (LockableResource r : resourcesToLock) {
-			r.unqueue();
-			r.setBuild(build);
+		finally {
+			structureLock.readLock().unlock();
 		}
-		return true;
 	}
 
-	public synchronized void unlock(List<LockableResource> resources,
+	public void unlock(List<LockableResource> resources,
 			AbstractBuild<?, ?> build) {
-		for (LockableResource r : resources) {
-			if (build == null || build == r.getBuild()) {
-				r.unqueue();
-				r.setBuild(null);
+		long waitStart = System.nanoTime();
+		structureLock.readLock().lock();
+		try {
+			Lock[] held = lockForChange(resources);
+			long now = System.nanoTime();
+			metrics.recordLockWait(now - waitStart);
+			try {
+				for (LockableResource r : resources) {
+					if (build == null || build == r.getBuild()) {
+						release(r, now);
+					}
+				}
 			}
+			finally {
+				unlockAfterChange(held);
+			}
+		}
+		finally {
+			structureLock.readLock().unlock();
+		}
+		notifyReleased(resources);
+	}
+
+	// callers must hold the stripe of the resource
+	private void release(LockableResource r, long now) {
+		if ( r.isLocked() ) {
+			long hold = now - r.getLockedSince();
+			metrics.recordHold(r.getName(), hold);
+			backfill.recordHold(r.getBuild().getParent().getFullName(), hold);
+			changes.publish(ChangeFeed.UNLOCKED, r.getName(), r.getBuildName());
 		}
+		else if ( r.peekQueueItemId() != LockableResource.NOT_QUEUED ) {
+			changes.publish(ChangeFeed.UNQUEUED, r.getName(), r.peekQueueItemProject());
+		}
+		r.unqueue();
+		r.setBuild(null);
 	}
 
-	public synchronized boolean reserve(List<LockableResource> resources,
+	public boolean reserve(List<LockableResource> resources,
 			String userName) {
-		for (LockableResource r : resources) {
-			if (r.isReserved() || r.isLocked() || r.isQueued()) {
-				return false;
+		boolean journaled;
+		structureLock.readLock().lock();
+		try {
+			Lock[] held = lockForChange(resources);
+			try {
+				for (LockableResource r : resources) {
+					if (r.isReserved() || r.isLocked() || r.isQueued()) {
+						return false;
+					}
+				}
+				for (LockableResource r : resources) {
+					r.setReservedBy(userName);
+					changes.publish(ChangeFeed.RESERVED, r.getName(), userName);
+				}
+				journaled = journal(StateJournal.RESERVE, resources, userName);
+			}
+			finally {
+				unlockAfterChange(held);
 			}
 		}
-		for (LockableResource r : resources) {
-			r.setReservedBy(userName);
+		finally {
+			structureLock.readLock().unlock();
 		}
-		save();
+		if ( !journaled ) save();
 		return true;
 	}
 
-	public synchronized void unreserve(List<LockableResource> resources) {
-		for (LockableResource r : resources) {
-			r.unReserve();
+	public void unreserve(List<LockableResource> resources) {
+		boolean journaled;
+		structureLock.readLock().lock();
+		try {
+			Lock[] held = lockForChange(resources);
+			try {
+				for (LockableResource r : resources) {
+					if ( r.isReserved() ) changes.publish(ChangeFeed.UNRESERVED, r.getName(), r.getReservedBy());
+					r.unReserve();
+				}
+				journaled = journal(StateJournal.UNRESERVE, resources, null);
+			}
+			finally {
+				unlockAfterChange(held);
+			}
 		}
-		save();
+		finally {
+			structureLock.readLock().unlock();
+		}
+		notifyReleased(resources);
+		if ( !journaled ) save();
 	}
 
-	public synchronized void reset(List<LockableResource> resources) {
-		for (LockableResource r : resources) {
-			r.reset();
+	public void reset(List<LockableResource> resources) {
+		boolean journaled;
+		structureLock.readLock().lock();
+		try {
+			Lock[] held = lockForChange(resources);
+			try {
+				for (LockableResource r : resources) {
+					r.reset();
+					changes.publish(ChangeFeed.RESET, r.getName(), null);
+				}
+				journaled = journal(StateJournal.RESET, resources, null);
+			}
+			finally {
+				unlockAfterChange(held);
+			}
+		}
+		finally {
+			structureLock.readLock().unlock();
+		}
+		notifyReleased(resources);
+		if ( !journaled ) save();
+	}
+
+	/**
+	 * Applies a batch of operations atomically: all resources are checked
+	 * first, and nothing is changed unless every operation can be carried
+	 * out.  The configuration is saved once for the whole batch.
+	 *
+	 * @param operations the batch, see {@link BulkOperations}
+	 * @param userName the user reserving, null if nobody is logged in
+	 * @param admin whether the user may give back the reservations of others
+	 * @return the result for every resource of the batch, and for every
+	 *         label which has too few free resources
+	 */
+	public BulkOperations.Outcome apply(List<BulkOperations.Operation> operations,
+	                                    String userName, boolean admin) {
+		List<BulkOperations.Result> results = new ArrayList<BulkOperations.Result>();
+		List<LockableResource> released = new ArrayList<LockableResource>();
+		boolean applied = true;
+		// the write lock keeps every other operation out for the whole batch
+		structureLock.writeLock().lock();
+		try {
+			Set<LockableResource> touched = new HashSet<LockableResource>();
+			List<List<LockableResource>> targets = new ArrayList<List<LockableResource>>(operations.size());
+			for ( BulkOperations.Operation op : operations ) {
+				List<LockableResource> target = new ArrayList<LockableResource>();
+				targets.add(target);
+				if ( op.label != null ) {
+					// only reservations select by label
+					if ( userName == null ) {
+						applied = false;
+						results.add(new BulkOperations.Result(op.action, null, op.label, BulkOperations.FORBIDDEN,
+								"Reserving requires a user"));
+						continue;
+					}
+					for ( LockableResource r : getResourcesWithLabel(op.label) ) {
+						if ( target.size() == op.count ) break;
+						if ( r.isFree() && !touched.contains(r) ) target.add(r);
+					}
+					if ( target.size() < op.count ) {
+						applied = false;
+						results.add(new BulkOperations.Result(op.action, null, op.label, BulkOperations.INSUFFICIENT,
+								target.size() + " of " + op.count + " resources are free"));
+						target.clear();
+						continue;
+					}
+					for ( LockableResource r : target ) {
+						touched.add(r);
+						results.add(new BulkOperations.Result(op.action, r.getName(), op.label, BulkOperations.OK, null));
+					}
+					continue;
+				}
+				for ( String name : op.resources ) {
+					LockableResource r = fromName(name);
+					String status = BulkOperations.OK;
+					String message = null;
+					if ( r == null ) {
+						status = BulkOperations.NOT_FOUND;
+					}
+					else if ( !touched.add(r) ) {
+						status = BulkOperations.DUPLICATE;
+						message = "Only one operation per resource";
+					}
+					else if ( BulkOperations.RESERVE.equals(op.action) ) {
+						if ( userName == null ) {
+							status = BulkOperations.FORBIDDEN;
+							message = "Reserving requires a user";
+						}
+						else if ( r.isReserved() || r.isLocked() || r.isQueued() ) {
+							status = BulkOperations.CONFLICT;
+							message = r.isReserved() ? "Reserved by " + r.getReservedBy()
+									: r.isLocked() ? "Locked by " + r.getBuildName() : "Queued";
+						}
+					}
+					else if ( BulkOperations.UNRESERVE.equals(op.action) ) {
+						// the same rule as for unreserving a single resource
+						if ( (userName == null || !userName.equals(r.getReservedBy())) && !admin ) {
+							status = BulkOperations.FORBIDDEN;
+							message = r.isReserved() ? "Reserved by " + r.getReservedBy() : "Not reserved";
+						}
+					}
+					if ( status.equals(BulkOperations.OK) ) {
+						target.add(r);
+					}
+					else {
+						applied = false;
+					}
+					results.add(new BulkOperations.Result(op.action, name, null, status, message));
+				}
+			}
+
+			if ( !applied ) {
+				for ( int i = 0; i < results.size(); i++ ) {
+					BulkOperations.Result r = results.get(i);
+					if ( r.status.equals(BulkOperations.OK) ) {
+						results.set(i, new BulkOperations.Result(r.action, r.resource, r.label, BulkOperations.ABORTED,
+								"Another operation of the batch failed"));
+					}
+				}
+				return new BulkOperations.Outcome(false, results);
+			}
+
+			long now = System.nanoTime();
+			for ( int i = 0; i < operations.size(); i++ ) {
+				String action = operations.get(i).action;
+				for ( LockableResource r : targets.get(i) ) {
+					if ( BulkOperations.RESERVE.equals(action) ) {
+						r.setReservedBy(userName);
+						changes.publish(ChangeFeed.RESERVED, r.getName(), userName);
+					}
+					else if ( BulkOperations.UNRESERVE.equals(action) ) {
+						if ( r.isReserved() ) changes.publish(ChangeFeed.UNRESERVED, r.getName(), r.getReservedBy());
+						r.unReserve();
+						released.add(r);
+					}
+					else if ( BulkOperations.UNLOCK.equals(action) ) {
+						release(r, now);
+						released.add(r);
+					}
+					else {
+						r.reset();
+						changes.publish(ChangeFeed.RESET, r.getName(), null);
+						released.add(r);
+					}
+				}
+			}
+			publishSnapshot();
 		}
+		finally {
+			structureLock.writeLock().unlock();
+		}
+		notifyReleased(released);
 		save();
+		return new BulkOperations.Outcome(true, results);
+	}
+
+	/**
+	 * Wakes up the queue right away if a blocked item waits for one of the
+	 * given resources which are free now, instead of letting it wait for the
+	 * next periodic maintenance.
+	 *
+	 * Must be called without holding any of the manager locks, as the queue
+	 * maintenance calls back into {@link #queue}.
+	 *
+	 * @param released resources which may have become free
+	 */
+	private void notifyReleased(Collection<LockableResource> released) {
+		List<LockableResource> free = new ArrayList<LockableResource>(released.size());
+		for ( LockableResource r : released ) {
+			if ( r.isFree() ) free.add(r);
+		}
+		if ( free.isEmpty() ) return;
+		// before waking up the queue, so it sees the released resources assigned
+		replanBatch();
+		Set<Integer> waiting = blockedItems.getWaitingItems(free);
+		if ( waiting.isEmpty() ) return;
+
+		Jenkins jenkins = Jenkins.getInstance();
+		if ( jenkins == null ) return;
+		Queue queue = jenkins.getQueue();
+		List<Integer> wakeUp = new ArrayList<Integer>(waiting.size());
+		for ( int id : waiting ) {
+			if ( queue.getItem(id) != null ) {
+				wakeUp.add(id);
+			}
+			else {
+				// left the queue without ever getting its resources
+				forgetQueueItem(id);
+			}
+		}
+		if ( !wakeUp.isEmpty() ) {
+			LOGGER.log(Level.FINE, "Released {0}, waking up queue items {1}", new Object[]{free, wakeUp});
+			queue.scheduleMaintenance();
+		}
+	}
+
+	/**
+	 * Called by a resource which was just queued, its selection is given
+	 * back once the queue timeout passed without the item locking it.
+	 */
+	void scheduleQueuingExpiry(LockableResource r) {
+		queuingExpiry.schedule(r, TimeUnit.SECONDS.toNanos(getQueueTimeout()));
+	}
+
+	// called on the expiry thread, the queuing may have been renewed or dropped since
+	private void expireQueuing(LockableResource r) {
+		structureLock.readLock().lock();
+		try {
+			// a reconfiguration replaces the resource objects
+			r = fromName(r.getName());
+			if ( r == null ) return;
+			Lock[] held = lockForChange(Collections.singleton(r));
+			try {
+				if ( r.peekQueueItemId() == LockableResource.NOT_QUEUED ) return;
+				long left = r.getQueuingStarted() + TimeUnit.SECONDS.toNanos(getQueueTimeout()) - System.nanoTime();
+				if ( left > 0 ) {
+					queuingExpiry.schedule(r, left);
+					return;
+				}
+				LOGGER.log(Level.FINE, "Queuing of {0} by {1} expired",
+						new Object[]{r, r.peekQueueItemProject()});
+				changes.publish(ChangeFeed.UNQUEUED, r.getName(), r.peekQueueItemProject());
+				r.unqueue();
+			}
+			finally {
+				unlockAfterChange(held);
+			}
+		}
+		finally {
+			structureLock.readLock().unlock();
+		}
+		notifyReleased(Collections.singleton(r));
 	}
 
 	@Override
-	public synchronized void configure(StaplerRequest req, JSONObject json) {
+	public void configure(StaplerRequest req, JSONObject json) {
+		structureLock.writeLock().lock();
+		try {
+			doConfigure(req, json);
+			buildCaches();
+			save();
+		}
+		finally {
+			structureLock.writeLock().unlock();
+		}
+	}
+
+	private void doConfigure(StaplerRequest req, JSONObject json) {
 		String loadBalancingLabelsString = json.getString("loadBalancingLabels").trim();
 		loadBalancingLabels.clear();
 		for ( String label : loadBalancingLabelsString.split(RESOURCES_SPLIT_REGEX) ) {
@@ -401,6 +1186,8 @@ public class LockableResourcesManager extends Plugin {
 
 		useResourcesEvenly = json.getBoolean("useResourcesEvenly");
 
+		queueTimeout = json.optInt("queueTimeout", DEFAULT_QUEUE_TIMEOUT);
+
 		List<KeyValuePair> aliases = req.bindJSONToList(
 				KeyValuePair.class, json.get("labelAliases"));
 		labelAliases.clear();
@@ -419,27 +1206,51 @@ public class LockableResourcesManager extends Plugin {
 				r.setQueued(r.getQueueItemId(), r.getQueueItemProject());
 			}
 		}
+		for (LockableResource r : resources) {
+			r.setManager(null);
+		}
 		resources.clear();
 		resources.addAll(newResouces);
-		save();
 	}
 	
-	public synchronized boolean addResourceLabel( LockableResource res, String label ) {
-		Set<String> resLabels = res.getModifyableLabelSet();
-		boolean result = resLabels.add(label);
-		if ( result ) {
-			save();
-		}
-		return result;
+	public boolean addResourceLabel( LockableResource res, String label ) {
+		return changeResourceLabel(res, label, true);
 	}
 	
-	public synchronized boolean removeResourceLabel( LockableResource res, String label ) {
-		Set<String> resLabels = res.getModifyableLabelSet();
-		boolean result = resLabels.remove(label);
-		if ( result ) {
-			save();
+	public boolean removeResourceLabel( LockableResource res, String label ) {
+		return changeResourceLabel(res, label, false);
+	}
+
+	private boolean changeResourceLabel( LockableResource res, String label, boolean add ) {
+		structureLock.writeLock().lock();
+		try {
+			boolean result;
+			boolean journaled = false;
+			Lock[] held = lockForChange(Collections.singleton(res));
+			try {
+				String lbGroup = getLbGroup(res);
+				Set<String> resLabels = res.getModifyableLabelSet();
+				result = add ? resLabels.add(label) : resLabels.remove(label);
+				if ( result ) {
+					if ( stateIndex.contains(res) ) {
+						updateLabelCaches(res, label, add, lbGroup);
+					}
+					else {
+						buildCaches();
+					}
+					journaled = journal(add ? StateJournal.ADD_LABEL : StateJournal.REMOVE_LABEL,
+					                    Collections.singleton(res), label);
+				}
+			}
+			finally {
+				unlockAfterChange(held);
+			}
+			if ( result && !journaled ) save();
+			return result;
+		}
+		finally {
+			structureLock.writeLock().unlock();
 		}
-		return result;
 	}
 
 	public static LockableResourcesManager get() {
@@ -453,62 +1264,553 @@ public class LockableResourcesManager extends Plugin {
 	}
 
 	@Override
-	public synchronized void load() throws IOException {
-		super.load();
-		buildCaches();
+	public void stop() throws Exception {
+		saver.stop();
+		compactor.stop();
+		ownershipSaver.stop();
+		queuingExpiry.stop();
+		StateJournal journal = this.journal;
+		if ( journal != null ) journal.close();
+		super.stop();
 	}
 
 	@Override
-	public synchronized void save() {
+	public void load() throws IOException {
+		structureLock.writeLock().lock();
 		try {
-			super.save();
+			super.load();
+			replayJournal();
 			buildCaches();
 		}
+		finally {
+			structureLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Persists the configuration and the reservations, or only schedules
+	 * that if a save delay is configured.  The caches are not rebuilt here,
+	 * whoever changes the configuration must call {@link #buildCaches()}
+	 * first.
+	 */
+	@Override
+	public void save() {
+		saver.request();
+	}
+
+	/**
+	 * @return how many calls to {@link #save()} were covered by the write of
+	 *         another one
+	 */
+	public long getCoalescedSaves() {
+		return saver.getCoalescedSaves();
+	}
+
+	// the file is written to a temporary file and renamed by XmlFile
+	private void saveNow() {
+		// nowhere to save to without Jenkins, as in tests
+		if ( Jenkins.getInstance() == null ) return;
+		structureLock.readLock().lock();
+		try {
+			synchronized (saveLock) {
+				// changes journaled from now on are not necessarily part of this save
+				StateJournal journal = this.journal;
+				if ( journal != null ) journal.rotate();
+				super.save();
+				if ( journal != null ) journal.discardRotated();
+			}
+		}
 		catch ( IOException ex ) {
 			LOGGER.log(Level.SEVERE, "Unable to save configuration!", ex);
 		}
+		finally {
+			structureLock.readLock().unlock();
+		}
 	}
 
-	private synchronized void buildCaches() {
-		labelsCache.clear();
-		lbLabelsCache.clear();
-		resourceMapCache.clear();
-		for ( LockableResource r : resources ) {
-			boolean foundLbLabel = false;
-			for ( String label : r.getLabelSet() ) {
-				if ( !labelsCache.containsKey(label) ) labelsCache.put(label, new HashSet<LockableResource>());
-				labelsCache.get(label).add(r);
+	/**
+	 * Appends a change to the journal, if enabled, and schedules a
+	 * compaction once the journal grew long.  Callers must hold the stripes
+	 * of the resources, so that the entries of a resource are in order.
+	 *
+	 * @return false if the change was not journaled and needs a save
+	 */
+	private boolean journal(String op, Collection<LockableResource> changed, String arg) {
+		StateJournal journal = this.journal;
+		if ( !JOURNAL_ENABLED || journal == null ) return false;
+		List<String> names = new ArrayList<String>(changed.size());
+		for ( LockableResource r : changed ) {
+			names.add(r.getName());
+		}
+		try {
+			journal.append(op, names, arg);
+		}
+		catch ( IOException ex ) {
+			LOGGER.log(Level.WARNING, "Unable to append to the journal, saving the whole configuration instead.", ex);
+			return false;
+		}
+		if ( journal.getEntries() >= JOURNAL_COMPACT_ENTRIES ) compactor.request();
+		return true;
+	}
 
-				if (loadBalancingLabels.contains(label)) {
-					foundLbLabel = true;
-					if ( !lbLabelsCache.containsKey(label) ) lbLabelsCache.put(label, new HashSet<LockableResource>());
-					lbLabelsCache.get(label).add(r);
+	private void saveOwnership() {
+		OwnershipSnapshot ownership = this.ownership;
+		// until restored the file still holds the owners from before the restart
+		if ( ownership == null || !ownershipRestored ) return;
+		try {
+			ownership.write(resourceListCache);
+		}
+		catch ( IOException ex ) {
+			LOGGER.log(Level.WARNING, "Unable to save the lock owners!", ex);
+		}
+	}
+
+	/**
+	 * Gives the resources back to the builds which locked them and the queue
+	 * items which selected them before the restart.  Only the builds and
+	 * queue items named in the ownership file are looked up, builds which
+	 * are no longer running and items which left the queue are skipped.
+	 */
+	void restoreOwnership() {
+		Jenkins jenkins = Jenkins.getInstance();
+		OwnershipSnapshot ownership = this.ownership;
+		if ( jenkins == null || ownership == null || ownershipRestored ) return;
+		List<OwnershipSnapshot.Owner> owners;
+		try {
+			owners = ownership.read();
+		}
+		catch ( IOException ex ) {
+			LOGGER.log(Level.WARNING, "Unable to read the lock owners!", ex);
+			owners = Collections.emptyList();
+		}
+		int restored = 0;
+		structureLock.readLock().lock();
+		try {
+			for ( OwnershipSnapshot.Owner owner : owners ) {
+				LockableResource r = fromName(owner.resource);
+				if ( r == null ) continue;
+				AbstractBuild<?, ?> build = null;
+				if ( owner.buildProject != null ) {
+					AbstractProject<?, ?> project = jenkins.getItemByFullName(owner.buildProject, AbstractProject.class);
+					build = project != null ? project.getBuildByNumber(owner.buildNumber) : null;
+					if ( build != null && !build.isBuilding() ) build = null;
 				}
+				boolean queued = owner.queueItemId != LockableResource.NOT_QUEUED &&
+						jenkins.getQueue().getItem(owner.queueItemId) != null;
+				if ( build == null && !queued ) continue;
+				Lock[] held = lockForChange(Collections.singleton(r));
+				try {
+					if ( build != null && !r.isLocked() ) r.setBuild(build);
+					if ( queued && !r.isQueued() ) r.setQueued(owner.queueItemId, owner.queueItemProject);
+				}
+				finally {
+					unlockAfterChange(held);
+				}
+				restored++;
+			}
+		}
+		finally {
+			structureLock.readLock().unlock();
+		}
+		ownershipRestored = true;
+		LOGGER.log(Level.FINE, "Restored the owners of {0} of {1} resources.", new Object[]{restored, owners.size()});
+		ownershipSaver.request();
+	}
+
+	@Initializer(after = InitMilestone.COMPLETED)
+	public static void restoreOwnershipAfterStartup() {
+		LockableResourcesManager manager = get();
+		if ( manager != null ) manager.restoreOwnership();
+	}
+
+	// callers must hold the write lock of structureLock, before the caches are built
+	private void replayJournal() {
+		Jenkins jenkins = Jenkins.getInstance();
+		if ( jenkins == null ) return;
+		if ( journal == null ) {
+			journal = new StateJournal(new File(jenkins.getRootDir(), this.getClass().getName() + ".journal"));
+		}
+		if ( ownership == null ) {
+			ownership = new OwnershipSnapshot(new File(jenkins.getRootDir(), this.getClass().getName() + ".owners"));
+		}
+		List<StateJournal.Entry> entries;
+		try {
+			entries = journal.read();
+		}
+		catch ( IOException ex ) {
+			LOGGER.log(Level.SEVERE, "Unable to read the journal!", ex);
+			return;
+		}
+		if ( entries.isEmpty() ) return;
+
+		Map<String,LockableResource> byName = new HashMap<String,LockableResource>();
+		for ( LockableResource r : resources ) {
+			byName.put(r.getName(), r);
+		}
+		for ( StateJournal.Entry e : entries ) {
+			// the resource may have been removed since
+			LockableResource r = byName.get(e.resource);
+			if ( r == null ) continue;
+			if ( StateJournal.RESERVE.equals(e.op) ) {
+				r.setReservedBy(e.arg);
+			}
+			else if ( StateJournal.UNRESERVE.equals(e.op) || StateJournal.RESET.equals(e.op) ) {
+				r.unReserve();
+			}
+			else if ( StateJournal.ADD_LABEL.equals(e.op) ) {
+				r.getModifyableLabelSet().add(e.arg);
+			}
+			else if ( StateJournal.REMOVE_LABEL.equals(e.op) ) {
+				r.getModifyableLabelSet().remove(e.arg);
+			}
+		}
+		LOGGER.log(Level.INFO, "Replayed {0} journal entries.", entries.size());
+		compactor.request();
+	}
+
+	// callers must hold the write lock of structureLock
+	private void buildCaches() {
+		Map<String,Set<LockableResource>> labelsCache = new TreeMap<String,Set<LockableResource>>();
+		Map<String,Set<LockableResource>> lbGroupsCache = new LinkedHashMap<String,Set<LockableResource>>();
+		Map<String,LockableResource> resourceMapCache = new HashMap<String,LockableResource>(resources.size() * 4 / 3 + 1);
+		Map<String,ResourceStateCounter> labelStateCache = new HashMap<String,ResourceStateCounter>();
+		ResourceStateCounter lbNoLabelState = new ResourceStateCounter();
+		synchronized (indexLock) {
+			buildIndex.clear();
+			queueItemIndex.clear();
+			projectIndex.clear();
+		}
+		for ( LockableResource r : resources ) {
+			r.setManager(this);
+			int state = r.getState();
+			synchronized (indexLock) {
+				addToBuildIndex(r);
+				addToQueueIndexes(r);
 			}
-			if ( !foundLbLabel ) {
-				if ( !lbLabelsCache.containsKey(null) ) lbLabelsCache.put(null, new HashSet<LockableResource>());
-				lbLabelsCache.get(null).add(r);
+			for ( String label : r.getLabelSet() ) {
+				if ( !labelsCache.containsKey(label) ) labelsCache.put(label, new LinkedHashSet<LockableResource>());
+				labelsCache.get(label).add(r);
+				if ( !labelStateCache.containsKey(label) ) labelStateCache.put(label, new ResourceStateCounter());
+				labelStateCache.get(label).addResource(state);
 			}
+			String lbGroup = getLbGroup(r);
+			if ( !lbGroupsCache.containsKey(lbGroup) ) lbGroupsCache.put(lbGroup, new HashSet<LockableResource>());
+			lbGroupsCache.get(lbGroup).add(r);
+			if ( lbGroup == null ) lbNoLabelState.addResource(state);
 			resourceMapCache.put(r.getName(), r);
 		}
 
-		// process label aliases
+		addLabelAliases(labelsCache, labelStateCache, resourceMapCache);
+
+		// the label sets are handed out as is from now on
+		ResourceStateIndex stateIndex = new ResourceStateIndex(resources);
+		Map<Set<LockableResource>,Set<LockableResource>> shared = new IdentityHashMap<Set<LockableResource>,Set<LockableResource>>();
+		for ( Map.Entry<String,Set<LockableResource>> e : labelsCache.entrySet() ) {
+			Set<LockableResource> labelSet = shared.get(e.getValue());
+			if ( labelSet == null ) {
+				// aliases share the set of their label
+				labelSet = Collections.unmodifiableSet(e.getValue());
+				shared.put(e.getValue(), labelSet);
+				stateIndex.register(labelSet);
+			}
+			e.setValue(labelSet);
+		}
+
+		this.stateIndex = stateIndex;
+		this.labelsCache = labelsCache;
+		this.lbGroupsCache = toIds(stateIndex, lbGroupsCache, new LinkedHashMap<String,ResourceIdSet>());
+		ResourceIdSet lbNoLabelIds = this.lbGroupsCache.get(null);
+		this.lbNoLabelIds = lbNoLabelIds != null ? lbNoLabelIds : ResourceIdSet.EMPTY;
+		this.lbNoLabelState = lbNoLabelState;
+		this.resourceMapCache = resourceMapCache;
+		this.labelStateCache = labelStateCache;
+		this.resourceListCache = Collections.unmodifiableList(new ArrayList<LockableResource>(resources));
+		this.labelAliasesCache = Collections.unmodifiableMap(new LinkedHashMap<String,String>(labelAliases));
+		configGeneration.incrementAndGet();
+		stateVersion.incrementAndGet();
+		changes.publish(ChangeFeed.CONFIG, null, null);
+		publishSnapshot();
+	}
+
+	private void addLabelAliases(Map<String,Set<LockableResource>> labelsCache,
+	                             Map<String,ResourceStateCounter> labelStateCache,
+	                             Map<String,LockableResource> resourceMapCache) {
 		for ( String alias : labelAliases.keySet() ) {
-			if ( !labelsCache.containsKey(alias) && fromName(alias) == null ) {
+			if ( !labelsCache.containsKey(alias) && !resourceMapCache.containsKey(alias) ) {
 				String aliasedLabel = labelAliases.get(alias);
 				if ( labelsCache.containsKey(aliasedLabel) ) {
 					labelsCache.put(alias, labelsCache.get(aliasedLabel));
+					labelStateCache.put(alias, labelStateCache.get(aliasedLabel));
 				}
 			}
 		}
 	}
 
-	private synchronized double calculateLbLabelUsage( String label ) {
-		int used = 0;
-		for ( LockableResource r : lbLabelsCache.get(label) ) {
-			if ( !r.isFree() ) used++;
+	// the alias entries share the set of the label they stand for
+	private void removeLabelAliases(Map<String,Set<LockableResource>> labelsCache,
+	                                Map<String,ResourceStateCounter> labelStateCache) {
+		List<String> aliases = new ArrayList<String>();
+		for ( Map.Entry<String,String> e : labelAliases.entrySet() ) {
+			Set<LockableResource> aliasSet = labelsCache.get(e.getKey());
+			if ( aliasSet != null && !e.getKey().equals(e.getValue()) && aliasSet == labelsCache.get(e.getValue()) ) {
+				aliases.add(e.getKey());
+			}
+		}
+		for ( String alias : aliases ) {
+			labelsCache.remove(alias);
+			labelStateCache.remove(alias);
+		}
+	}
+
+	// the first load balancing label of the resource, null if none
+	private String getLbGroup(LockableResource r) {
+		for ( String label : loadBalancingLabels ) {
+			if ( r.isValidLabel(label) ) return label;
+		}
+		return null;
+	}
+
+	/**
+	 * Updates the caches for one label added to or removed from a resource,
+	 * instead of rebuilding them.  Only the entries of that label, its
+	 * aliases and the load balancing groups of the resource are replaced.
+	 * Callers must hold the write lock of structureLock and the stripe of
+	 * the resource.
+	 *
+	 * @param r a resource of the current generation
+	 * @param label the label which was added or removed
+	 * @param added true if the label was added
+	 * @param oldLbGroup the load balancing group of the resource before the change
+	 */
+	private void updateLabelCaches(LockableResource r, String label, boolean added, String oldLbGroup) {
+		ResourceStateIndex stateIndex = this.stateIndex;
+		int id = r.getId();
+		int state = r.getState();
+
+		Map<String,Set<LockableResource>> labelsCache = new TreeMap<String,Set<LockableResource>>(this.labelsCache);
+		Map<String,ResourceStateCounter> labelStateCache = new HashMap<String,ResourceStateCounter>(this.labelStateCache);
+		removeLabelAliases(labelsCache, labelStateCache);
+		Set<LockableResource> oldSet = labelsCache.get(label);
+		ResourceIdSet ids = oldSet != null ? stateIndex.idsOf(oldSet) : ResourceIdSet.EMPTY;
+		ids = added ? ids.with(id) : ids.without(id);
+		if ( ids.isEmpty() ) {
+			labelsCache.remove(label);
+			labelStateCache.remove(label);
+			stateIndex.replace(oldSet, null, ids);
+		}
+		else {
+			// kept in configuration order, like a full rebuild would
+			Set<LockableResource> labelSet = Collections.unmodifiableSet(stateIndex.resourcesOf(ids));
+			labelsCache.put(label, labelSet);
+			stateIndex.replace(oldSet, labelSet, ids);
+			ResourceStateCounter counter = labelStateCache.get(label);
+			if ( counter == null ) {
+				counter = new ResourceStateCounter();
+				labelStateCache.put(label, counter);
+			}
+			if ( added ) counter.addResource(state);
+			else counter.removeResource(state);
+		}
+		addLabelAliases(labelsCache, labelStateCache, resourceMapCache);
+
+		String newLbGroup = getLbGroup(r);
+		if ( newLbGroup == null ? oldLbGroup != null : !newLbGroup.equals(oldLbGroup) ) {
+			Map<String,ResourceIdSet> groups = new HashMap<String,ResourceIdSet>(lbGroupsCache);
+			ResourceIdSet oldIds = groups.get(oldLbGroup).without(id);
+			if ( oldIds.isEmpty() ) groups.remove(oldLbGroup);
+			else groups.put(oldLbGroup, oldIds);
+			ResourceIdSet newIds = groups.get(newLbGroup);
+			groups.put(newLbGroup, newIds != null ? newIds.with(id) : ResourceIdSet.EMPTY.with(id));
+			// ordered by their first resource, like a full rebuild would
+			List<Map.Entry<String,ResourceIdSet>> ordered = new ArrayList<Map.Entry<String,ResourceIdSet>>(groups.entrySet());
+			Collections.sort(ordered, new Comparator<Map.Entry<String,ResourceIdSet>>() {
+				public int compare(Map.Entry<String,ResourceIdSet> a, Map.Entry<String,ResourceIdSet> b) {
+					return a.getValue().nextId(0) - b.getValue().nextId(0);
+				}
+			});
+			Map<String,ResourceIdSet> lbGroupsCache = new LinkedHashMap<String,ResourceIdSet>();
+			for ( Map.Entry<String,ResourceIdSet> e : ordered ) {
+				lbGroupsCache.put(e.getKey(), e.getValue());
+			}
+			if ( oldLbGroup == null ) lbNoLabelState.removeResource(state);
+			if ( newLbGroup == null ) lbNoLabelState.addResource(state);
+			ResourceIdSet lbNoLabelIds = lbGroupsCache.get(null);
+			this.lbNoLabelIds = lbNoLabelIds != null ? lbNoLabelIds : ResourceIdSet.EMPTY;
+			this.lbGroupsCache = lbGroupsCache;
 		}
-		return (double)used / lbLabelsCache.get(label).size();
+
+		this.labelsCache = labelsCache;
+		this.labelStateCache = labelStateCache;
+		configGeneration.incrementAndGet();
+		stateVersion.incrementAndGet();
+		changes.publish(ChangeFeed.CONFIG, r.getName(), label);
+	}
+
+	/**
+	 * Compares the caches against what a full rebuild from the resources
+	 * would produce.
+	 *
+	 * @return the differences found, empty if the caches are consistent
+	 */
+	List<String> checkCaches() {
+		List<String> problems = new ArrayList<String>();
+		structureLock.readLock().lock();
+		try {
+			Map<String,List<LockableResource>> labels = new TreeMap<String,List<LockableResource>>();
+			Map<String,List<LockableResource>> groups = new LinkedHashMap<String,List<LockableResource>>();
+			Map<String,LockableResource> names = new HashMap<String,LockableResource>();
+			for ( LockableResource r : resources ) {
+				for ( String label : r.getLabelSet() ) {
+					if ( !labels.containsKey(label) ) labels.put(label, new ArrayList<LockableResource>());
+					labels.get(label).add(r);
+				}
+				String lbGroup = getLbGroup(r);
+				if ( !groups.containsKey(lbGroup) ) groups.put(lbGroup, new ArrayList<LockableResource>());
+				groups.get(lbGroup).add(r);
+				names.put(r.getName(), r);
+			}
+			for ( String alias : labelAliases.keySet() ) {
+				if ( !labels.containsKey(alias) && !names.containsKey(alias) ) {
+					String aliasedLabel = labelAliases.get(alias);
+					if ( labels.containsKey(aliasedLabel) ) labels.put(alias, labels.get(aliasedLabel));
+				}
+			}
+
+			if ( !names.equals(resourceMapCache) ) {
+				problems.add("resource names: expected " + names.keySet() + " but was " + resourceMapCache.keySet());
+			}
+			if ( !labels.keySet().equals(labelsCache.keySet()) ) {
+				problems.add("labels: expected " + labels.keySet() + " but was " + labelsCache.keySet());
+			}
+			if ( !labels.keySet().equals(labelStateCache.keySet()) ) {
+				problems.add("label states: expected " + labels.keySet() + " but was " + labelStateCache.keySet());
+			}
+			for ( Map.Entry<String,List<LockableResource>> e : labels.entrySet() ) {
+				Set<LockableResource> cached = labelsCache.get(e.getKey());
+				if ( cached != null && !e.getValue().equals(new ArrayList<LockableResource>(cached)) ) {
+					problems.add("label " + e.getKey() + ": expected " + e.getValue() + " but was " + cached);
+				}
+				ResourceStateCounter counter = labelStateCache.get(e.getKey());
+				if ( counter != null ) checkCounter(problems, "label " + e.getKey(), e.getValue(), counter);
+			}
+
+			if ( !new ArrayList<String>(groups.keySet()).equals(new ArrayList<String>(lbGroupsCache.keySet())) ) {
+				problems.add("load balancing groups: expected " + groups.keySet() + " but was " + lbGroupsCache.keySet());
+			}
+			for ( Map.Entry<String,List<LockableResource>> e : groups.entrySet() ) {
+				ResourceIdSet cached = lbGroupsCache.get(e.getKey());
+				List<LockableResource> found = cached != null ? new ArrayList<LockableResource>(stateIndex.resourcesOf(cached)) : null;
+				if ( found != null && !e.getValue().equals(found) ) {
+					problems.add("load balancing group " + e.getKey() + ": expected " + e.getValue() + " but was " + found);
+				}
+			}
+			List<LockableResource> noLabel = groups.get(null);
+			if ( noLabel == null ) noLabel = Collections.emptyList();
+			if ( lbNoLabelIds.size() != noLabel.size() ) {
+				problems.add("resources without load balancing label: expected " + noLabel.size() + " but was " + lbNoLabelIds.size());
+			}
+			checkCounter(problems, "resources without load balancing label", noLabel, lbNoLabelState);
+		}
+		finally {
+			structureLock.readLock().unlock();
+		}
+		return problems;
+	}
+
+	private static void checkCounter(List<String> problems, String what, Collection<LockableResource> resources, ResourceStateCounter counter) {
+		ResourceStateCounter expected = new ResourceStateCounter();
+		for ( LockableResource r : resources ) {
+			expected.addResource(r.getState());
+		}
+		if ( !expected.toString().equals(counter.toString()) ) {
+			problems.add(what + ": expected " + expected + " but was " + counter);
+		}
+	}
+
+	private static Map<String,ResourceIdSet> toIds(ResourceStateIndex stateIndex,
+	                                               Map<String,Set<LockableResource>> sets,
+	                                               Map<String,ResourceIdSet> ids) {
+		for ( Map.Entry<String,Set<LockableResource>> e : sets.entrySet() ) {
+			ids.put(e.getKey(), stateIndex.idsOf(e.getValue()));
+		}
+		return ids;
+	}
+
+	/**
+	 * Called by a resource right before its state changes.
+	 *
+	 * @param r the resource about to change
+	 */
+	void unindexState(LockableResource r) {
+		int state = r.getState();
+		Map<String,ResourceStateCounter> labelStateCache = this.labelStateCache;
+		for ( String label : r.getLabelSet() ) {
+			ResourceStateCounter counter = labelStateCache.get(label);
+			if ( counter != null ) counter.add(state, -1);
+		}
+		if ( lbNoLabelIds.contains(r.getId()) ) lbNoLabelState.add(state, -1);
+		synchronized (indexLock) {
+			removeFromIndex(buildIndex, r.getBuild(), r);
+			if ( r.peekQueueItemId() != LockableResource.NOT_QUEUED ) {
+				removeFromIndex(queueItemIndex, r.peekQueueItemId(), r);
+				removeFromIndex(projectIndex, r.peekQueueItemProject(), r);
+			}
+		}
+	}
+
+	/**
+	 * Called by a resource right after its state changed.
+	 *
+	 * @param r the resource which changed
+	 */
+	void indexState(LockableResource r) {
+		int state = r.getState();
+		Map<String,ResourceStateCounter> labelStateCache = this.labelStateCache;
+		for ( String label : r.getLabelSet() ) {
+			ResourceStateCounter counter = labelStateCache.get(label);
+			if ( counter != null ) counter.add(state, 1);
+		}
+		if ( lbNoLabelIds.contains(r.getId()) ) lbNoLabelState.add(state, 1);
+		synchronized (indexLock) {
+			addToBuildIndex(r);
+			addToQueueIndexes(r);
+		}
+		stateIndex.update(r);
+		stateVersion.incrementAndGet();
+		if ( ownership != null ) ownershipSaver.request();
+	}
+
+	private void addToBuildIndex(LockableResource r) {
+		addToIndex(buildIndex, r.getBuild(), r);
+	}
+
+	private void addToQueueIndexes(LockableResource r) {
+		if ( r.peekQueueItemId() != LockableResource.NOT_QUEUED ) {
+			addToIndex(queueItemIndex, r.peekQueueItemId(), r);
+			addToIndex(projectIndex, r.peekQueueItemProject(), r);
+		}
+	}
+
+	private static <K> void addToIndex(Map<K,Set<LockableResource>> index, K key, LockableResource r) {
+		if ( key == null ) return;
+		if ( !index.containsKey(key) ) index.put(key, new LinkedHashSet<LockableResource>());
+		index.get(key).add(r);
+	}
+
+	private static <K> void removeFromIndex(Map<K,Set<LockableResource>> index, K key, LockableResource r) {
+		if ( key == null ) return;
+		Set<LockableResource> indexed = index.get(key);
+		if ( indexed != null ) {
+			indexed.remove(r);
+			if ( indexed.isEmpty() ) index.remove(key);
+		}
+	}
+
+	// O(1), the counters of the labels are kept up to date on every state change
+	private double calculateLbLabelUsage( String label ) {
+		ResourceStateCounter counter = label != null ? labelStateCache.get(label) : lbNoLabelState;
+		int total = counter.getTotal();
+		return (double)(total - counter.getFree()) / total;
 	}
 
 	@Override
@@ -0,0 +1,270 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the resource manager and dispatcher,
+ * written out in the Prometheus text format.
+ *
+ * Recording only touches atomics, it does not allocate once the series of
+ * a label or resource exists.  The number of series per metric is capped,
+ * everything beyond is recorded under {@link #OTHER}.
+ */
+public class LockableResourcesMetrics {
+
+	public static final String OTHER = "_other";
+
+	private static final int MAX_SERIES =
+			Integer.getInteger(LockableResourcesMetrics.class.getName() + ".maxSeries", 500);
+
+	/**
+	 * Exponential histogram: bucket i counts the values below 2^i
+	 * microseconds, the last bucket everything else.
+	 */
+	public static class Histogram {
+
+		static final int BUCKETS = 32;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sumNanos = new AtomicLong();
+
+		public void record(long nanos) {
+			if ( nanos < 0 ) nanos = 0;
+			long micros = nanos / 1000;
+			int bucket = 64 - Long.numberOfLeadingZeros(micros);
+			counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+			count.incrementAndGet();
+			sumNanos.addAndGet(nanos);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		long getBucket(int i) {
+			return counts.get(i);
+		}
+
+		void write(Writer out, String name, String labelName, String labelValue) throws IOException {
+			String labels = labelName != null ? labelName + "=\"" + escape(labelValue) + "\"," : "";
+			long cumulative = 0;
+			for ( int i = 0; i < BUCKETS; i++ ) {
+				cumulative += counts.get(i);
+				String le = i < BUCKETS - 1 ? Double.toString((1L << i) / 1e6) : "+Inf";
+				out.write(name + "_bucket{" + labels + "le=\"" + le + "\"} " + cumulative + "\n");
+			}
+			String plain = labelName != null ? "{" + labels.substring(0, labels.length() - 1) + "}" : "";
+			out.write(name + "_sum" + plain + " " + (sumNanos.get() / 1e9) + "\n");
+			out.write(name + "_count" + plain + " " + count.get() + "\n");
+		}
+	}
+
+	/**
+	 * A value which is read when the metrics are written.
+	 */
+	public interface Gauge {
+		double value();
+	}
+
+	private static class NamedGauge {
+		final String name;
+		final String help;
+		final Gauge gauge;
+
+		NamedGauge(String name, String help, Gauge gauge) {
+			this.name = name;
+			this.help = help;
+			this.gauge = gauge;
+		}
+	}
+
+	private final ConcurrentHashMap<String,Histogram> waitByLabel = new ConcurrentHashMap<String,Histogram>();
+	private final ConcurrentHashMap<String,Histogram> holdByResource = new ConcurrentHashMap<String,Histogram>();
+	// the series of everything beyond the cap, allocated up front
+	private final Histogram otherWait = new Histogram();
+	private final Histogram otherHold = new Histogram();
+	private final Histogram canRun = new Histogram();
+	private final Histogram lockWait = new Histogram();
+	private final AtomicLong selections = new AtomicLong();
+	private final AtomicLong selectionFailures = new AtomicLong();
+	private final Histogram reservationWait = new Histogram();
+	private final AtomicLong backfilled = new AtomicLong();
+	private final AtomicLong heldBack = new AtomicLong();
+	private final CopyOnWriteArrayList<NamedGauge> gauges = new CopyOnWriteArrayList<NamedGauge>();
+
+	/**
+	 * Adds a gauge which is written along with the other metrics.
+	 *
+	 * @param name the metric name
+	 * @param help its description
+	 */
+	public void addGauge(String name, String help, Gauge gauge) {
+		gauges.add(new NamedGauge(name, help, gauge));
+	}
+
+	/**
+	 * @param label what the queue item asked for
+	 * @param nanos how long it waited for its resources
+	 */
+	public void recordWait(String label, long nanos) {
+		series(waitByLabel, otherWait, label).record(nanos);
+	}
+
+	/**
+	 * @param resource the resource which was released
+	 * @param nanos how long a build had it locked
+	 */
+	public void recordHold(String resource, long nanos) {
+		series(holdByResource, otherHold, resource).record(nanos);
+	}
+
+	/**
+	 * @param nanos how long the dispatcher took to decide on a queue item
+	 */
+	public void recordCanRun(long nanos) {
+		canRun.record(nanos);
+	}
+
+	/**
+	 * @param nanos how long an operation waited for the manager's locks
+	 */
+	public void recordLockWait(long nanos) {
+		lockWait.record(nanos);
+	}
+
+	/**
+	 * @param success false if not enough resources were free
+	 */
+	public void recordSelection(boolean success) {
+		if ( success ) selections.incrementAndGet();
+		else selectionFailures.incrementAndGet();
+	}
+
+	/**
+	 * @param nanos how long a large queue item held a reservation before it
+	 *        got its resources
+	 */
+	public void recordReservationWait(long nanos) {
+		reservationWait.record(nanos);
+	}
+
+	/**
+	 * Called for queue items which an older reservation held some of their
+	 * free candidates back from.
+	 *
+	 * @param admitted true if the item got enough resources anyway, false if
+	 *        it was refused for the reservation
+	 */
+	public void recordBackfill(boolean admitted) {
+		if ( admitted ) backfilled.incrementAndGet();
+		else heldBack.incrementAndGet();
+	}
+
+	public Histogram getReservationWait() {
+		return reservationWait;
+	}
+
+	public long getBackfilled() {
+		return backfilled.get();
+	}
+
+	public long getHeldBack() {
+		return heldBack.get();
+	}
+
+	public Histogram getCanRun() {
+		return canRun;
+	}
+
+	public Histogram getLockWait() {
+		return lockWait;
+	}
+
+	public Histogram getWait(String label) {
+		return waitByLabel.get(label);
+	}
+
+	public Histogram getHold(String resource) {
+		return holdByResource.get(resource);
+	}
+
+	public long getSelections() {
+		return selections.get();
+	}
+
+	public long getSelectionFailures() {
+		return selectionFailures.get();
+	}
+
+	private static Histogram series(ConcurrentHashMap<String,Histogram> map, Histogram other, String key) {
+		if ( key == null ) key = OTHER;
+		Histogram h = map.get(key);
+		if ( h != null ) return h;
+		if ( key.equals(OTHER) || map.size() >= MAX_SERIES ) {
+			// a full map allocates nothing, however many new keys come
+			Histogram existing = map.putIfAbsent(OTHER, other);
+			return existing != null ? existing : other;
+		}
+		h = new Histogram();
+		Histogram existing = map.putIfAbsent(key, h);
+		return existing != null ? existing : h;
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text exposition format.
+	 */
+	public void write(Writer out) throws IOException {
+		out.write("# HELP lockable_resources_wait_seconds Time queue items waited for their resources.\n");
+		out.write("# TYPE lockable_resources_wait_seconds histogram\n");
+		for ( Map.Entry<String,Histogram> e : new TreeMap<String,Histogram>(waitByLabel).entrySet() ) {
+			e.getValue().write(out, "lockable_resources_wait_seconds", "label", e.getKey());
+		}
+		out.write("# HELP lockable_resources_hold_seconds Time builds held a resource.\n");
+		out.write("# TYPE lockable_resources_hold_seconds histogram\n");
+		for ( Map.Entry<String,Histogram> e : new TreeMap<String,Histogram>(holdByResource).entrySet() ) {
+			e.getValue().write(out, "lockable_resources_hold_seconds", "resource", e.getKey());
+		}
+		out.write("# HELP lockable_resources_can_run_seconds Time the dispatcher took per queue item.\n");
+		out.write("# TYPE lockable_resources_can_run_seconds histogram\n");
+		canRun.write(out, "lockable_resources_can_run_seconds", null, null);
+		out.write("# HELP lockable_resources_lock_wait_seconds Time spent waiting for the manager's locks.\n");
+		out.write("# TYPE lockable_resources_lock_wait_seconds histogram\n");
+		lockWait.write(out, "lockable_resources_lock_wait_seconds", null, null);
+		out.write("# HELP lockable_resources_selections_total Attempts to select resources for a queue item.\n");
+		out.write("# TYPE lockable_resources_selections_total counter\n");
+		out.write("lockable_resources_selections_total{result=\"success\"} " + selections.get() + "\n");
+		out.write("lockable_resources_selections_total{result=\"failure\"} " + selectionFailures.get() + "\n");
+		out.write("# HELP lockable_resources_reservation_wait_seconds Time large queue items held a reservation.\n");
+		out.write("# TYPE lockable_resources_reservation_wait_seconds histogram\n");
+		reservationWait.write(out, "lockable_resources_reservation_wait_seconds", null, null);
+		out.write("# HELP lockable_resources_backfill_total Queue items an older reservation held resources back from.\n");
+		out.write("# TYPE lockable_resources_backfill_total counter\n");
+		out.write("lockable_resources_backfill_total{result=\"admitted\"} " + backfilled.get() + "\n");
+		out.write("lockable_resources_backfill_total{result=\"held_back\"} " + heldBack.get() + "\n");
+		for ( NamedGauge g : gauges ) {
+			out.write("# HELP " + g.name + " " + g.help + "\n");
+			out.write("# TYPE " + g.name + " gauge\n");
+			out.write(g.name + " " + g.gauge.value() + "\n");
+		}
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,132 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import hudson.model.AbstractBuild;
+import hudson.util.AtomicFileWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Which build locks and which queue item queued each resource, kept in a
+ * small file of its own so that it can be written on every change without
+ * touching the configuration.  One line per resource which is locked or
+ * queued: its name, the full name of the project and number of the build
+ * locking it, and the id and project of the queue item which queued it.
+ */
+class OwnershipSnapshot {
+
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * The owners of one resource, as read back.
+	 */
+	static class Owner {
+		final String resource;
+		// null if not locked
+		final String buildProject;
+		final int buildNumber;
+		// LockableResource.NOT_QUEUED if not queued
+		final int queueItemId;
+		final String queueItemProject;
+
+		Owner(String resource, String buildProject, int buildNumber, int queueItemId, String queueItemProject) {
+			this.resource = resource;
+			this.buildProject = buildProject;
+			this.buildNumber = buildNumber;
+			this.queueItemId = queueItemId;
+			this.queueItemProject = queueItemProject;
+		}
+	}
+
+	private final File file;
+
+	OwnershipSnapshot(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Replaces the file with the current owners of the given resources.
+	 */
+	synchronized void write(Collection<LockableResource> resources) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for ( LockableResource r : resources ) {
+			AbstractBuild<?, ?> build = r.getBuild();
+			int queueItemId = r.peekQueueItemId();
+			if ( build == null && queueItemId == LockableResource.NOT_QUEUED ) continue;
+			sb.append(encode(r.getName())).append('\t');
+			if ( build != null ) {
+				sb.append(encode(build.getParent().getFullName())).append('\t').append(build.getNumber());
+			}
+			else {
+				sb.append('\t');
+			}
+			sb.append('\t').append(queueItemId);
+			sb.append('\t').append(encode(r.peekQueueItemProject()));
+			sb.append('\n');
+		}
+		AtomicFileWriter out = new AtomicFileWriter(file);
+		try {
+			out.write(sb.toString());
+			out.commit();
+		}
+		finally {
+			out.abort();
+		}
+	}
+
+	/**
+	 * @return the owners written last, empty if there is no file
+	 */
+	synchronized List<Owner> read() throws IOException {
+		List<Owner> owners = new ArrayList<Owner>();
+		if ( !file.exists() ) return owners;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+		try {
+			String line;
+			while ( (line = in.readLine()) != null ) {
+				String[] fields = line.split("\t", -1);
+				if ( fields.length != 5 ) continue;
+				try {
+					owners.add(new Owner(
+							decode(fields[0]),
+							fields[1].length() > 0 ? decode(fields[1]) : null,
+							fields[2].length() > 0 ? Integer.parseInt(fields[2]) : 0,
+							Integer.parseInt(fields[3]),
+							fields[4].length() > 0 ? decode(fields[4]) : null));
+				}
+				catch ( NumberFormatException ex ) {
+					// skip what cannot be understood, the resource is just free then
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		return owners;
+	}
+
+	private static String encode(String s) throws UnsupportedEncodingException {
+		return s != null ? URLEncoder.encode(s, ENCODING) : "";
+	}
+
+	private static String decode(String s) throws UnsupportedEncodingException {
+		return URLDecoder.decode(s, ENCODING);
+	}
+}
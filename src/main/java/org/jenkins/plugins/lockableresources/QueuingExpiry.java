@@ -0,0 +1,124 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Expires queued selections on a background thread once their timeout
+ * passed, so that reading a resource never changes it and an expired
+ * selection is given back even if nobody looks at the resource.
+ *
+ * At most one entry is pending per resource.  When it is due the callback
+ * checks the current queuing of the resource, which may have been renewed,
+ * locked or dropped in the meantime, and schedules it again if needed.
+ */
+class QueuingExpiry {
+
+	private static final Logger LOGGER = Logger.getLogger(QueuingExpiry.class.getName());
+
+	/**
+	 * Called on the expiry thread for every resource which is due.
+	 */
+	interface Callback {
+		void expire(LockableResource r);
+	}
+
+	private static class Entry implements Delayed {
+		final LockableResource resource;
+		final long deadline;
+
+		Entry(LockableResource resource, long deadline) {
+			this.resource = resource;
+			this.deadline = deadline;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			long diff = deadline - ((Entry)other).deadline;
+			return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+		}
+	}
+
+	private final Callback callback;
+	private final DelayQueue<Entry> queue = new DelayQueue<Entry>();
+	private final Set<LockableResource> pending =
+			Collections.newSetFromMap(new ConcurrentHashMap<LockableResource,Boolean>());
+	private Thread thread = null;
+
+	QueuingExpiry(Callback callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * Has the callback check the resource after the given delay, unless a
+	 * check is pending already.
+	 *
+	 * @param r the resource which was queued
+	 * @param delayNanos when to check it at the latest
+	 */
+	void schedule(LockableResource r, long delayNanos) {
+		if ( !pending.add(r) ) return;
+		queue.add(new Entry(r, System.nanoTime() + delayNanos));
+		startIfNeeded();
+	}
+
+	private synchronized void startIfNeeded() {
+		if ( thread != null ) return;
+		thread = new Thread("Lockable Resources queuing expiry") {
+			@Override
+			public void run() {
+				while ( true ) {
+					Entry e;
+					try {
+						e = queue.take();
+					}
+					catch ( InterruptedException ex ) {
+						return;
+					}
+					pending.remove(e.resource);
+					try {
+						callback.expire(e.resource);
+					}
+					catch ( RuntimeException ex ) {
+						LOGGER.log(Level.WARNING, "Unable to expire the queuing of " + e.resource, ex);
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the number of resources waiting to be checked
+	 */
+	int size() {
+		return queue.size();
+	}
+
+	synchronized void stop() {
+		if ( thread != null ) {
+			thread.interrupt();
+			thread = null;
+		}
+		queue.clear();
+		pending.clear();
+	}
+}
@@ -127,15 +127,7 @@ public class RequiredResourcesProperty extends JobProperty<Job<?, ?>> {
 			} else {
 				List<String> wrongNames = new ArrayList<String>();
 				for (String name : names.split(RESOURCES_SPLIT_REGEX)) {
-					boolean found = false;
-					for (LockableResource r : LockableResourcesManager.get()
-							.getResources()) {
-						if (r.getName().equals(name)) {
-							found = true;
-							break;
-						}
-					}
-					if (!found)
+					if (LockableResourcesManager.get().fromName(name) == null)
 						wrongNames.add(name);
 				}
 				// now filter out valid labels
@@ -0,0 +1,155 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+/**
+ * Immutable set of resource ids, stored as a bitmap.
+ *
+ * Ids are assigned by {@link LockableResourcesManager} in configuration order
+ * and are only meaningful for the configuration generation they were taken
+ * from.
+ */
+public final class ResourceIdSet {
+
+	public static final ResourceIdSet EMPTY = new ResourceIdSet(new long[0]);
+
+	private final long[] words;
+	private final int size;
+
+	/**
+	 * @param words the bitmap, owned by the new set from now on
+	 */
+	ResourceIdSet(long[] words) {
+		this.words = words;
+		this.size = cardinality(words);
+	}
+
+	/**
+	 * @return the number of ids in the set
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean contains(int id) {
+		int w = id >>> 6;
+		return id >= 0 && w < words.length && (words[w] & (1L << id)) != 0;
+	}
+
+	/**
+	 * @return the first id equal to or greater than from, or -1
+	 */
+	public int nextId(int from) {
+		return nextSetBit(words, from);
+	}
+
+	/**
+	 * @return a new set with the given id added
+	 */
+	ResourceIdSet with(int id) {
+		if ( contains(id) ) return this;
+		long[] copy = new long[Math.max(words.length, (id >>> 6) + 1)];
+		System.arraycopy(words, 0, copy, 0, words.length);
+		set(copy, id);
+		return new ResourceIdSet(copy);
+	}
+
+	/**
+	 * @return a new set with the given id removed
+	 */
+	ResourceIdSet without(int id) {
+		if ( !contains(id) ) return this;
+		long[] copy = words.clone();
+		clear(copy, id);
+		return new ResourceIdSet(copy);
+	}
+
+	long word(int w) {
+		return w < words.length ? words[w] : 0L;
+	}
+
+	int wordCount() {
+		return words.length;
+	}
+
+	static long[] newWords(int bits) {
+		return new long[(bits + 63) >>> 6];
+	}
+
+	static void set(long[] words, int id) {
+		words[id >>> 6] |= 1L << id;
+	}
+
+	static void clear(long[] words, int id) {
+		words[id >>> 6] &= ~(1L << id);
+	}
+
+	static int nextSetBit(long[] words, int from) {
+		if ( from < 0 ) from = 0;
+		int w = from >>> 6;
+		if ( w >= words.length ) return -1;
+		long word = words[w] & (-1L << from);
+		while ( true ) {
+			if ( word != 0 ) return (w << 6) + Long.numberOfTrailingZeros(word);
+			if ( ++w >= words.length ) return -1;
+			word = words[w];
+		}
+	}
+
+	/**
+	 * @return the n-th (0 based) set bit, or -1
+	 */
+	static int nthSetBit(long[] words, int n) {
+		for ( int w = 0; w < words.length; w++ ) {
+			int count = Long.bitCount(words[w]);
+			if ( n < count ) {
+				long word = words[w];
+				for ( int i = 0; i < n; i++ ) {
+					word &= word - 1;
+				}
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			}
+			n -= count;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return a new bitmap of the bits set in both
+	 */
+	static long[] and(long[] words, ResourceIdSet ids) {
+		long[] result = new long[words.length];
+		for ( int w = 0; w < words.length; w++ ) {
+			result[w] = words[w] & ids.word(w);
+		}
+		return result;
+	}
+
+	static int cardinality(long[] words) {
+		int count = 0;
+		for ( long word : words ) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for ( int id = nextId(0); id >= 0; id = nextId(id + 1) ) {
+			if ( sb.length() > 1 ) sb.append(", ");
+			sb.append(id);
+		}
+		return sb.append("]").toString();
+	}
+}
@@ -0,0 +1,76 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks guarding the state of lockable resources.
+ *
+ * Each resource maps to one stripe by the hash of its name.  Operations on
+ * several resources take all their stripes in ascending stripe order, so two
+ * operations can never wait on each other in a cycle, and operations on
+ * disjoint stripes run in parallel.
+ */
+class ResourceLocks {
+
+	public static final int DEFAULT_STRIPES = 64;
+
+	private final ReentrantLock[] stripes;
+	private final int mask;
+
+	ResourceLocks(int concurrency) {
+		int size = 1;
+		while ( size < concurrency ) size <<= 1;
+		stripes = new ReentrantLock[size];
+		for ( int i = 0; i < size; i++ ) {
+			stripes[i] = new ReentrantLock();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Takes the stripes of all the given resources.
+	 *
+	 * @param resources the resources about to be read or changed
+	 * @return the locks taken, to be given back to {@link #unlock(Lock[])}
+	 */
+	Lock[] lock(Collection<LockableResource> resources) {
+		TreeSet<Integer> indexes = new TreeSet<Integer>();
+		for ( LockableResource r : resources ) {
+			indexes.add(stripeFor(r.getName()));
+		}
+		Lock[] held = new Lock[indexes.size()];
+		int i = 0;
+		for ( int index : indexes ) {
+			stripes[index].lock();
+			held[i++] = stripes[index];
+		}
+		return held;
+	}
+
+	void unlock(Lock[] held) {
+		for ( int i = held.length - 1; i >= 0; i-- ) {
+			held[i].unlock();
+		}
+	}
+
+	int stripeFor(String resourceName) {
+		int h = resourceName.hashCode();
+		h ^= (h >>> 16);
+		return h & mask;
+	}
+
+	int getStripeCount() {
+		return stripes.length;
+	}
+}
@@ -0,0 +1,207 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+/**
+ * A filtered, paginated and projected listing of the resources, for remote
+ * API clients which need only some resources and some of their properties.
+ *
+ * Resources are listed in configuration order.  The cursor is the name of
+ * the last resource of the previous page, so paging stays stable while
+ * resources change state; a cursor naming a resource which was removed
+ * since is rejected.  Only the requested fields are computed, the expensive
+ * ones like the reserver's e-mail address are not part of the defaults.
+ */
+public class ResourceQuery {
+
+	public static final int DEFAULT_LIMIT = 100;
+	public static final int MAX_LIMIT = 1000;
+
+	public static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(
+			"name", "description", "labels", "free", "reserved", "reservedBy", "reservedByEmail",
+			"locked", "buildName", "queued", "queueItemId", "queueItemProject"));
+	public static final List<String> DEFAULT_FIELDS = Collections.unmodifiableList(Arrays.asList(
+			"name", "labels", "reservedBy", "locked", "queued"));
+
+	private final String label;
+	private final int states;
+	private final boolean free;
+	private final String reservedBy;
+	private final String cursor;
+	private final int limit;
+	private final Set<String> fields;
+
+	/**
+	 * @param label only resources with this label or alias, null for all
+	 * @param states comma separated states out of free, queued, locked and
+	 *        reserved, a resource in any of them is listed; null for all
+	 * @param reservedBy only resources reserved by this user, null for all
+	 * @param cursor the last resource of the previous page, null for the first
+	 * @param limit the page size, 0 for the default, see {@link #parseLimit}
+	 * @param fields comma separated fields to list, null for the defaults
+	 * @throws IllegalArgumentException for unknown states or fields, or a
+	 *         negative limit or one above {@link #MAX_LIMIT}
+	 */
+	public ResourceQuery(String label, String states, String reservedBy, String cursor, int limit, String fields) {
+		this.label = Util.fixEmptyAndTrim(label);
+		this.reservedBy = Util.fixEmptyAndTrim(reservedBy);
+		this.cursor = Util.fixEmptyAndTrim(cursor);
+		if ( limit < 0 || limit > MAX_LIMIT ) {
+			throw new IllegalArgumentException("The limit must be between 1 and " + MAX_LIMIT + ", or 0 for the default");
+		}
+		this.limit = limit == 0 ? DEFAULT_LIMIT : limit;
+
+		int stateFlags = 0;
+		boolean withFree = false;
+		for ( String state : Util.fixNull(states).split(",") ) {
+			state = state.trim();
+			if ( state.length() == 0 ) continue;
+			if ( state.equals("free") ) withFree = true;
+			else if ( state.equals("queued") ) stateFlags |= LockableResource.STATE_QUEUED;
+			else if ( state.equals("locked") ) stateFlags |= LockableResource.STATE_LOCKED;
+			else if ( state.equals("reserved") ) stateFlags |= LockableResource.STATE_RESERVED;
+			else throw new IllegalArgumentException("Unknown state " + state);
+		}
+		if ( stateFlags == 0 && !withFree ) {
+			// no states given, or only empty ones
+			stateFlags = LockableResource.STATE_QUEUED | LockableResource.STATE_LOCKED | LockableResource.STATE_RESERVED;
+			withFree = true;
+		}
+		this.states = stateFlags;
+		this.free = withFree;
+		this.fields = parseFields(fields);
+	}
+
+	/**
+	 * @param limit the page size as given by a client, null if none was
+	 * @return the page size, 0 for the default if none was given
+	 * @throws IllegalArgumentException if the limit is not a number between
+	 *         1 and {@link #MAX_LIMIT}
+	 */
+	public static int parseLimit(String limit) {
+		limit = Util.fixEmptyAndTrim(limit);
+		if ( limit == null ) return 0;
+		int parsed;
+		try {
+			parsed = Integer.parseInt(limit);
+		}
+		catch ( NumberFormatException ex ) {
+			parsed = -1;
+		}
+		if ( parsed < 1 || parsed > MAX_LIMIT ) {
+			throw new IllegalArgumentException("The limit must be between 1 and " + MAX_LIMIT);
+		}
+		return parsed;
+	}
+
+	/**
+	 * @param fields comma separated field names, null for the defaults
+	 * @return the fields in the given order
+	 * @throws IllegalArgumentException for unknown fields
+	 */
+	public static Set<String> parseFields(String fields) {
+		Set<String> parsed = new LinkedHashSet<String>();
+		for ( String field : Util.fixNull(fields).split(",") ) {
+			field = field.trim();
+			if ( field.length() == 0 ) continue;
+			if ( !FIELDS.contains(field) ) throw new IllegalArgumentException("Unknown field " + field);
+			parsed.add(field);
+		}
+		// no fields given, or only empty ones
+		if ( parsed.isEmpty() ) parsed.addAll(DEFAULT_FIELDS);
+		return parsed;
+	}
+
+	/**
+	 * @return one page of matching resources and the cursor of the next
+	 *         page, which is null on the last page
+	 * @throws IllegalArgumentException if the cursor is unknown
+	 */
+	public JSONObject run(LockableResourcesManager manager) {
+		ResourceStateIndex index = manager.getStateIndex();
+		ResourceIdSet candidates = label != null
+				? index.idsOf(manager.getResourcesWithLabel(label))
+				: index.all();
+		long[] matching = index.inStates(candidates, states, free);
+
+		int start = 0;
+		if ( cursor != null ) {
+			LockableResource after = manager.fromName(cursor);
+			if ( after == null || !index.contains(after) ) {
+				throw new IllegalArgumentException("Unknown cursor " + cursor);
+			}
+			start = after.getId() + 1;
+		}
+
+		JSONArray page = new JSONArray();
+		LockableResource last = null;
+		boolean more = false;
+		for ( int id = ResourceIdSet.nextSetBit(matching, start); id >= 0; id = ResourceIdSet.nextSetBit(matching, id + 1) ) {
+			LockableResource r = index.get(id);
+			if ( reservedBy != null && !reservedBy.equals(r.getReservedBy()) ) continue;
+			if ( page.size() == limit ) {
+				more = true;
+				break;
+			}
+			page.add(toJSON(r, fields));
+			last = r;
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("resources", page);
+		json.put("next", more ? last.getName() : JSONNull.getInstance());
+		return json;
+	}
+
+	/**
+	 * @param r the resource
+	 * @param fields the fields to compute, out of {@link #FIELDS}
+	 * @return the fields of the resource, in the given order
+	 */
+	public static JSONObject toJSON(LockableResource r, Collection<String> fields) {
+		// read each part of the state once, so the fields agree with each other
+		String reservedBy = r.getReservedBy();
+		AbstractBuild<?, ?> build = r.getBuild();
+		int queueItemId = r.getQueueItemId();
+		JSONObject json = new JSONObject();
+		for ( String field : fields ) {
+			Object value = null;
+			if ( field.equals("name") ) value = r.getName();
+			else if ( field.equals("description") ) value = r.getDescription();
+			else if ( field.equals("labels") ) value = r.getLabels();
+			else if ( field.equals("free") ) value = reservedBy == null && build == null
+					&& queueItemId == LockableResource.NOT_QUEUED;
+			else if ( field.equals("reserved") ) value = reservedBy != null;
+			else if ( field.equals("reservedBy") ) value = reservedBy;
+			else if ( field.equals("reservedByEmail") ) value = LockableResource.getEmail(reservedBy);
+			else if ( field.equals("locked") ) value = build != null;
+			else if ( field.equals("buildName") ) value = build != null ? build.getFullDisplayName() : null;
+			else if ( field.equals("queued") ) value = queueItemId != LockableResource.NOT_QUEUED;
+			else if ( field.equals("queueItemId") ) value = queueItemId;
+			else if ( field.equals("queueItemProject") ) value = r.getQueueItemProject();
+			// a null value would drop the key
+			json.put(field, value != null ? value : JSONNull.getInstance());
+		}
+		return json;
+	}
+}
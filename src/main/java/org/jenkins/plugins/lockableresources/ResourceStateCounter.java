@@ -0,0 +1,75 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Number of resources in each state for one label.
+ *
+ * The counters are updated by {@link LockableResourcesManager} on every
+ * state transition of a resource, so reading them is O(1).
+ */
+public class ResourceStateCounter {
+
+	private final AtomicInteger total = new AtomicInteger();
+	private final AtomicInteger free = new AtomicInteger();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger locked = new AtomicInteger();
+	private final AtomicInteger reserved = new AtomicInteger();
+
+	/**
+	 * Counts (or un-counts) a resource with the given state.
+	 *
+	 * @param state the resource state flags, see {@link LockableResource#getState()}
+	 * @param delta 1 to add the resource, -1 to remove it
+	 */
+	void add(int state, int delta) {
+		if ( state == 0 ) free.addAndGet(delta);
+		if ( (state & LockableResource.STATE_QUEUED) != 0 ) queued.addAndGet(delta);
+		if ( (state & LockableResource.STATE_LOCKED) != 0 ) locked.addAndGet(delta);
+		if ( (state & LockableResource.STATE_RESERVED) != 0 ) reserved.addAndGet(delta);
+	}
+
+	void addResource(int state) {
+		total.incrementAndGet();
+		add(state, 1);
+	}
+
+	void removeResource(int state) {
+		total.decrementAndGet();
+		add(state, -1);
+	}
+
+	public int getTotal() {
+		return total.get();
+	}
+
+	public int getFree() {
+		return free.get();
+	}
+
+	public int getQueued() {
+		return queued.get();
+	}
+
+	public int getLocked() {
+		return locked.get();
+	}
+
+	public int getReserved() {
+		return reserved.get();
+	}
+
+	@Override
+	public String toString() {
+		return "total=" + total + ", free=" + free + ", queued=" + queued +
+			", locked=" + locked + ", reserved=" + reserved;
+	}
+}
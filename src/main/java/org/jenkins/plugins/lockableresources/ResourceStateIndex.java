@@ -0,0 +1,219 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Dense ids and state bitmaps of all resources of one configuration
+ * generation, so that the dispatcher can filter candidates a word at a time
+ * instead of asking every resource for its state.
+ *
+ * The membership sets are built once and never change, the state bitmaps
+ * are updated by the manager on every state transition.  A word holds the
+ * bits of 64 resources which may be guarded by different stripes, so the
+ * state words are updated atomically.
+ */
+class ResourceStateIndex {
+
+	private final LockableResource[] resources;
+	private final AtomicLongArray queued;
+	private final AtomicLongArray locked;
+	private final AtomicLongArray reserved;
+	// filled while building the caches, replaced as a whole afterwards
+	private volatile Map<Set<LockableResource>,ResourceIdSet> idsBySet;
+
+	/**
+	 * Assigns the ids in iteration order and takes over the current states.
+	 *
+	 * @param resources all resources of the configuration
+	 */
+	ResourceStateIndex(Collection<LockableResource> resources) {
+		this.resources = resources.toArray(new LockableResource[resources.size()]);
+		int words = ResourceIdSet.newWords(this.resources.length).length;
+		this.queued = new AtomicLongArray(words);
+		this.locked = new AtomicLongArray(words);
+		this.reserved = new AtomicLongArray(words);
+		this.idsBySet = new IdentityHashMap<Set<LockableResource>,ResourceIdSet>();
+		for ( int id = 0; id < this.resources.length; id++ ) {
+			this.resources[id].setId(id);
+			update(this.resources[id]);
+		}
+	}
+
+	int size() {
+		return resources.length;
+	}
+
+	LockableResource get(int id) {
+		return resources[id];
+	}
+
+	/**
+	 * Remembers the ids of a shared resource set, like the set of resources
+	 * with a given label, so they need not be looked up again.
+	 * Only used while building the caches.
+	 */
+	ResourceIdSet register(Set<LockableResource> set) {
+		ResourceIdSet ids = idsOf(set);
+		idsBySet.put(set, ids);
+		return ids;
+	}
+
+	/**
+	 * Swaps a registered resource set for its updated copy, after the caches
+	 * were published.
+	 *
+	 * @param old the set to forget, or null
+	 * @param updated the set to remember instead, or null
+	 * @param ids the ids of the updated set
+	 */
+	void replace(Set<LockableResource> old, Set<LockableResource> updated, ResourceIdSet ids) {
+		Map<Set<LockableResource>,ResourceIdSet> copy = new IdentityHashMap<Set<LockableResource>,ResourceIdSet>(idsBySet);
+		if ( old != null ) copy.remove(old);
+		if ( updated != null ) copy.put(updated, ids);
+		idsBySet = copy;
+	}
+
+	/**
+	 * @return true if the resource is part of this generation
+	 */
+	boolean contains(LockableResource r) {
+		int id = r.getId();
+		return id >= 0 && id < resources.length && resources[id] == r;
+	}
+
+	/**
+	 * @return a new set of the resources with the given ids, in id order
+	 */
+	Set<LockableResource> resourcesOf(ResourceIdSet ids) {
+		Set<LockableResource> set = new LinkedHashSet<LockableResource>();
+		for ( int id = ids.nextId(0); id >= 0 && id < resources.length; id = ids.nextId(id + 1) ) {
+			set.add(resources[id]);
+		}
+		return set;
+	}
+
+	/**
+	 * @return the ids of the given resources of this generation; resources
+	 *         which are not part of it are skipped
+	 */
+	ResourceIdSet idsOf(Collection<LockableResource> set) {
+		ResourceIdSet ids = idsBySet.get(set);
+		if ( ids != null ) return ids;
+		long[] words = ResourceIdSet.newWords(resources.length);
+		for ( LockableResource r : set ) {
+			if ( contains(r) ) ResourceIdSet.set(words, r.getId());
+		}
+		return new ResourceIdSet(words);
+	}
+
+	/**
+	 * Copies the state of a resource into the bitmaps.
+	 *
+	 * @param r a resource which just changed state
+	 */
+	void update(LockableResource r) {
+		if ( !contains(r) ) return;
+		int id = r.getId();
+		int state = r.getState();
+		update(queued, id, (state & LockableResource.STATE_QUEUED) != 0);
+		update(locked, id, (state & LockableResource.STATE_LOCKED) != 0);
+		update(reserved, id, (state & LockableResource.STATE_RESERVED) != 0);
+	}
+
+	private static void update(AtomicLongArray bits, int id, boolean value) {
+		int w = id >>> 6;
+		long mask = 1L << id;
+		while ( true ) {
+			long word = bits.get(w);
+			long updated = value ? word | mask : word & ~mask;
+			if ( word == updated || bits.compareAndSet(w, word, updated) ) return;
+		}
+	}
+
+	/**
+	 * @return a new bitmap of the given ids which are neither queued, locked
+	 *         nor reserved
+	 */
+	long[] free(ResourceIdSet ids) {
+		long[] words = ResourceIdSet.newWords(resources.length);
+		for ( int w = 0; w < words.length; w++ ) {
+			words[w] = ids.word(w) & ~(queued.get(w) | locked.get(w) | reserved.get(w));
+		}
+		return words;
+	}
+
+	/**
+	 * @return a new bitmap of the given ids which are queued
+	 */
+	long[] queued(ResourceIdSet ids) {
+		long[] words = ResourceIdSet.newWords(resources.length);
+		for ( int w = 0; w < words.length; w++ ) {
+			words[w] = ids.word(w) & queued.get(w);
+		}
+		return words;
+	}
+
+	/**
+	 * @return the ids of all resources
+	 */
+	ResourceIdSet all() {
+		long[] words = ResourceIdSet.newWords(resources.length);
+		for ( int id = 0; id < resources.length; id++ ) {
+			ResourceIdSet.set(words, id);
+		}
+		return new ResourceIdSet(words);
+	}
+
+	/**
+	 * @param ids the ids to filter
+	 * @param states the STATE_* flags, a resource in any of these states is kept
+	 * @param free whether free resources are kept too
+	 * @return a new bitmap of the given ids which match
+	 */
+	long[] inStates(ResourceIdSet ids, int states, boolean free) {
+		long[] words = ResourceIdSet.newWords(resources.length);
+		for ( int w = 0; w < words.length; w++ ) {
+			long q = queued.get(w);
+			long l = locked.get(w);
+			long r = reserved.get(w);
+			long match = 0;
+			if ( (states & LockableResource.STATE_QUEUED) != 0 ) match |= q;
+			if ( (states & LockableResource.STATE_LOCKED) != 0 ) match |= l;
+			if ( (states & LockableResource.STATE_RESERVED) != 0 ) match |= r;
+			if ( free ) match |= ~(q | l | r);
+			words[w] = ids.word(w) & match;
+		}
+		return words;
+	}
+
+	/**
+	 * @return the number of resources which are queued, locked or reserved
+	 */
+	int busy() {
+		int busy = 0;
+		for ( int w = 0; w < queued.length(); w++ ) {
+			busy += Long.bitCount(queued.get(w) | locked.get(w) | reserved.get(w));
+		}
+		return busy;
+	}
+
+	static ResourceStateIndex empty() {
+		List<LockableResource> none = Collections.emptyList();
+		return new ResourceStateIndex(none);
+	}
+}
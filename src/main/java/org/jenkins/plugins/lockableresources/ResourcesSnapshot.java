@@ -0,0 +1,82 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable, versioned view of all resources and labels.
+ *
+ * Taken by the manager after a change while no other change is in
+ * progress, so the rows and the free amounts agree with each other and with
+ * the version.  The view is shared by all readers, see
+ * {@link LockableResourcesManager#getSnapshot()}, so pages, the remote API
+ * and auto-completion do not read the live structures.
+ */
+public class ResourcesSnapshot {
+
+	private final long version;
+	private final List<LockableResourceSnapshot> resources;
+	private final Set<String> labels;
+	private final Map<String,Integer> freeAmounts;
+	private final Map<String,String> labelAliases;
+
+	ResourcesSnapshot(long version,
+	                  Collection<LockableResource> resources,
+	                  Map<String,ResourceStateCounter> labelStates,
+	                  Map<String,String> labelAliases) {
+		this.version = version;
+		List<LockableResourceSnapshot> copies = new ArrayList<LockableResourceSnapshot>(resources.size());
+		for ( LockableResource r : resources ) {
+			copies.add(new LockableResourceSnapshot(r));
+		}
+		this.resources = Collections.unmodifiableList(copies);
+		Map<String,Integer> freeAmounts = new HashMap<String,Integer>();
+		for ( Map.Entry<String,ResourceStateCounter> e : labelStates.entrySet() ) {
+			freeAmounts.put(e.getKey(), e.getValue().getFree());
+		}
+		this.freeAmounts = Collections.unmodifiableMap(freeAmounts);
+		this.labels = Collections.unmodifiableSet(new TreeSet<String>(labelStates.keySet()));
+		this.labelAliases = Collections.unmodifiableMap(new HashMap<String,String>(labelAliases));
+	}
+
+	/**
+	 * @return the state version this snapshot was taken at
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public List<LockableResourceSnapshot> getResources() {
+		return resources;
+	}
+
+	public Set<String> getAllLabels() {
+		return labels;
+	}
+
+	public int getFreeResourceAmount(String label) {
+		Integer free = freeAmounts.get(label);
+		return free != null ? free : 0;
+	}
+
+	public String dereferenceLabelAlias(String label) {
+		if ( labels.contains(label) ) {
+			return labelAliases.get(label);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,215 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Append-only log of the persistent changes made since the configuration
+ * was last saved: reservations, resets and label edits.  Each change is one
+ * line, so persisting it costs a small append instead of writing the whole
+ * configuration.
+ *
+ * The entries record the resulting state, not a toggle, so replaying an
+ * entry which already made it into the saved configuration does no harm.
+ * Before a save the journal is rotated, new entries go to a fresh file, and
+ * the rotated one is discarded once the save succeeded.
+ */
+class StateJournal {
+
+	static final String RESERVE = "reserve";
+	static final String UNRESERVE = "unreserve";
+	static final String RESET = "reset";
+	static final String ADD_LABEL = "addLabel";
+	static final String REMOVE_LABEL = "removeLabel";
+
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * One change to one resource.
+	 */
+	static class Entry {
+		final String op;
+		final String resource;
+		final String arg;
+
+		Entry(String op, String resource, String arg) {
+			this.op = op;
+			this.resource = resource;
+			this.arg = arg;
+		}
+	}
+
+	private final File file;
+	private final File rotated;
+	private Writer out = null;
+	private int entries = 0;
+
+	/**
+	 * @param file the journal file, the rotated journal is kept next to it
+	 */
+	StateJournal(File file) {
+		this.file = file;
+		this.rotated = new File(file.getPath() + ".old");
+	}
+
+	/**
+	 * Appends the same change for several resources and flushes it.
+	 *
+	 * @param op one of the operation constants
+	 * @param resources the names of the changed resources
+	 * @param arg the user or label, null for none
+	 */
+	synchronized void append(String op, Collection<String> resources, String arg) throws IOException {
+		if ( out == null ) {
+			// do not glue the first entry onto a line cut off by a crash
+			truncatePartialLine(file);
+			out = new OutputStreamWriter(new FileOutputStream(file, true), ENCODING);
+		}
+		StringBuilder sb = new StringBuilder();
+		for ( String resource : resources ) {
+			sb.append(op).append('\t').append(encode(resource));
+			if ( arg != null ) sb.append('\t').append(encode(arg));
+			sb.append('\n');
+			entries++;
+		}
+		out.write(sb.toString());
+		out.flush();
+	}
+
+	/**
+	 * @return the number of entries appended since the last rotation
+	 */
+	synchronized int getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Moves the current entries aside before the configuration is saved.
+	 * Entries left over from a failed save are kept.
+	 */
+	synchronized void rotate() throws IOException {
+		close();
+		entries = 0;
+		if ( !file.exists() ) return;
+		if ( !rotated.exists() ) {
+			if ( file.renameTo(rotated) ) return;
+		}
+		// keep appending to what a failed save left behind
+		Writer old = new OutputStreamWriter(new FileOutputStream(rotated, true), ENCODING);
+		try {
+			for ( String line : readLines(file) ) {
+				old.write(line);
+				old.write('\n');
+			}
+		}
+		finally {
+			old.close();
+		}
+		if ( !file.delete() ) throw new IOException("Unable to delete " + file);
+	}
+
+	/**
+	 * Forgets the rotated entries, once the configuration containing them
+	 * was saved.
+	 */
+	synchronized void discardRotated() {
+		rotated.delete();
+	}
+
+	/**
+	 * @return the rotated and the current entries, in the order they were
+	 *         appended; a line cut off by a crash is skipped
+	 */
+	synchronized List<Entry> read() throws IOException {
+		List<Entry> read = new ArrayList<Entry>();
+		for ( File f : new File[] { rotated, file } ) {
+			if ( !f.exists() ) continue;
+			for ( String line : readLines(f) ) {
+				String[] fields = line.split("\t");
+				if ( fields.length < 2 || fields.length > 3 ) continue;
+				read.add(new Entry(fields[0], decode(fields[1]), fields.length > 2 ? decode(fields[2]) : null));
+			}
+		}
+		return read;
+	}
+
+	synchronized void close() throws IOException {
+		if ( out != null ) {
+			out.close();
+			out = null;
+		}
+	}
+
+	private static void truncatePartialLine(File f) throws IOException {
+		if ( !f.exists() ) return;
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			long length = raf.length();
+			while ( length > 0 ) {
+				raf.seek(length - 1);
+				if ( raf.read() == '\n' ) break;
+				length--;
+			}
+			if ( length < raf.length() ) raf.setLength(length);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	// only lines ended by a newline count, the last one may have been cut off
+	private static List<String> readLines(File f) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), ENCODING));
+		try {
+			StringBuilder line = new StringBuilder();
+			char[] buf = new char[8192];
+			int n;
+			while ( (n = in.read(buf)) >= 0 ) {
+				for ( int i = 0; i < n; i++ ) {
+					if ( buf[i] != '\n' ) {
+						line.append(buf[i]);
+					}
+					else {
+						if ( line.length() > 0 ) lines.add(line.toString());
+						line.setLength(0);
+					}
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		return lines;
+	}
+
+	private static String encode(String s) throws UnsupportedEncodingException {
+		return URLEncoder.encode(s, ENCODING);
+	}
+
+	private static String decode(String s) throws UnsupportedEncodingException {
+		return URLDecoder.decode(s, ENCODING);
+	}
+}
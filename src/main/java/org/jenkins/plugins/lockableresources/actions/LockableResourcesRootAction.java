@@ -19,20 +19,32 @@ import hudson.security.PermissionGroup;
 import hudson.security.PermissionScope;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 
 import jenkins.model.Jenkins;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.IOUtils;
 
 import static org.jenkins.plugins.lockableresources.Constants.*;
+import org.jenkins.plugins.lockableresources.BulkOperations;
+import org.jenkins.plugins.lockableresources.ChangeFeed;
 import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourceSnapshot;
 import org.jenkins.plugins.lockableresources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.Messages;
+import org.jenkins.plugins.lockableresources.ResourceQuery;
+import org.jenkins.plugins.lockableresources.ResourceStateCounter;
+import org.jenkins.plugins.lockableresources.ResourcesSnapshot;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
@@ -53,6 +65,11 @@ public class LockableResourcesRootAction implements RootAction {
 			Messages._ReservePermission_Description(), Jenkins.ADMINISTER,
 			PermissionScope.JENKINS);
 
+	// how long an event stream is kept open before the client has to reconnect
+	private static final long EVENT_STREAM_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	// how long an event stream may be idle before a comment is sent
+	private static final long EVENT_HEARTBEAT_MILLIS = TimeUnit.SECONDS.toMillis(15);
+
 	public String getIconFileName() {
 		if (User.current() != null) {
 			// only show if logged in
@@ -81,25 +98,216 @@ public class LockableResourcesRootAction implements RootAction {
 		return new Api(this);
 	}
 
+	/**
+	 * Pages should take the snapshot once and render everything from it.
+	 */
+	public ResourcesSnapshot getSnapshot() {
+		return LockableResourcesManager.get().getSnapshot();
+	}
+
 	@Exported
-	public Collection<LockableResource> getResources() {
-		return Collections.unmodifiableCollection(LockableResourcesManager.get().getResources());
+	public Collection<LockableResourceSnapshot> getResources() {
+		return getSnapshot().getResources();
+	}
+
+	/**
+	 * Looks up a single resource by name, for
+	 * <code>/lockable-resources/resource/NAME</code>.
+	 *
+	 * @return null if there is no such resource, which answers 404
+	 */
+	public ResourceEndpoint getResource(String name) {
+		LockableResource r = LockableResourcesManager.get().fromName(name);
+		return r != null ? new ResourceEndpoint(r) : null;
+	}
+
+	/**
+	 * Lists the resources as JSON under <code>/lockable-resources/query</code>,
+	 * filtered by the <code>label</code>, <code>state</code> and
+	 * <code>reservedBy</code> parameters, one page of <code>limit</code>
+	 * resources after the <code>cursor</code> at a time, with the given
+	 * <code>fields</code>.  See {@link ResourceQuery}.
+	 */
+	public void doQuery(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+		JSONObject page;
+		try {
+			ResourceQuery query = new ResourceQuery(
+					req.getParameter("label"),
+					req.getParameter("state"),
+					req.getParameter("reservedBy"),
+					req.getParameter("cursor"),
+					ResourceQuery.parseLimit(req.getParameter("limit")),
+					req.getParameter("fields"));
+			page = query.run(LockableResourcesManager.get());
+		}
+		catch ( IllegalArgumentException ex ) {
+			rsp.sendError(400, ex.getMessage());
+			return;
+		}
+
+		rsp.setContentType("application/json;charset=UTF-8");
+		Writer out = rsp.getCompressedWriter(req);
+		try {
+			page.write(out);
+		}
+		finally {
+			out.close();
+		}
 	}
 
 	public int getFreeResourceAmount(String label) {
-		return LockableResourcesManager.get().getFreeResourceAmount(label);
+		return getSnapshot().getFreeResourceAmount(label);
+	}
+
+	public ResourceStateCounter getLabelState(String label) {
+		return LockableResourcesManager.get().getLabelState(label);
 	}
 
 	public String dereferenceLabelAlias(String label) {
-		return LockableResourcesManager.get().dereferenceLabelAlias(label);
+		return getSnapshot().dereferenceLabelAlias(label);
 	}
 
 	public Set<String> getAllLabels() {
-		return Collections.unmodifiableSet(LockableResourcesManager.get().getAllLabels());
+		return getSnapshot().getAllLabels();
 	}
 
 	public int getNumberOfAllLabels() {
-		return LockableResourcesManager.get().getAllLabels().size();
+		return getSnapshot().getAllLabels().size();
+	}
+
+	/**
+	 * Serves the metrics in the Prometheus text format, under
+	 * <code>/lockable-resources/metrics</code>.
+	 */
+	public void doMetrics(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+		rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		Writer out = rsp.getCompressedWriter(req);
+		try {
+			LockableResourcesManager.get().getMetrics().write(out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Applies a batch of operations posted as JSON to
+	 * <code>/lockable-resources/bulk</code>, all or nothing, and answers with
+	 * the result for every resource.  See {@link BulkOperations} for the
+	 * format.
+	 */
+	public void doBulk(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		if ( !"POST".equals(req.getMethod()) ) {
+			rsp.sendError(405, "POST required");
+			return;
+		}
+
+		List<BulkOperations.Operation> operations;
+		try {
+			operations = BulkOperations.parse(JSONObject.fromObject(IOUtils.toString(req.getReader())));
+		}
+		catch ( JSONException ex ) {
+			rsp.sendError(400, ex.getMessage());
+			return;
+		}
+		catch ( IllegalArgumentException ex ) {
+			rsp.sendError(400, ex.getMessage());
+			return;
+		}
+
+		Jenkins jenkins = Jenkins.getInstance();
+		for ( BulkOperations.Operation op : operations ) {
+			boolean reservation = BulkOperations.RESERVE.equals(op.action)
+					|| BulkOperations.UNRESERVE.equals(op.action);
+			jenkins.checkPermission(reservation ? RESERVE : UNLOCK);
+		}
+
+		BulkOperations.Outcome outcome = LockableResourcesManager.get().apply(
+				operations, getUserName(), jenkins.hasPermission(Jenkins.ADMINISTER));
+
+		rsp.setStatus(outcome.applied ? 200 : 409);
+		rsp.setContentType("application/json;charset=UTF-8");
+		Writer out = rsp.getCompressedWriter(req);
+		try {
+			outcome.toJSON().write(out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Streams the changes of the resources as server-sent events under
+	 * <code>/lockable-resources/events</code>.  A client resumes after the
+	 * event given by the <code>Last-Event-ID</code> header or the
+	 * <code>since</code> parameter; it gets a <code>resync</code> event if
+	 * it has to reload the resources first, and an <code>overflow</code>
+	 * event before the stream is closed because it fell behind.  Streams
+	 * are closed after a while, clients are expected to reconnect.
+	 */
+	public void doEvents(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+		String lastEventId = req.getHeader("Last-Event-ID");
+		if ( lastEventId == null ) lastEventId = req.getParameter("since");
+		ChangeFeed feed = LockableResourcesManager.get().getChangeFeed();
+		ChangeFeed.Subscription subscription = feed.subscribe(lastEventId);
+		if ( subscription == null ) {
+			rsp.sendError(503, "Too many clients are following the changes");
+			return;
+		}
+		try {
+			rsp.setContentType("text/event-stream;charset=UTF-8");
+			rsp.setHeader("Cache-Control", "no-cache");
+			// not compressed, a compressing writer would hold the events back
+			PrintWriter out = rsp.getWriter();
+			// the stream continues after the version the client got last
+			long delivered = subscription.getVersion();
+			if ( subscription.isResync() ) {
+				feed.write(out, ChangeFeed.RESYNC, delivered);
+			}
+			for ( ChangeFeed.Event e : subscription.getBacklog() ) {
+				feed.write(out, e);
+			}
+			out.flush();
+			long end = System.currentTimeMillis() + EVENT_STREAM_MILLIS;
+			while ( !out.checkError() && System.currentTimeMillis() < end ) {
+				ChangeFeed.Event e = subscription.poll(EVENT_HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+				if ( e == null && !subscription.isOverflowed() ) {
+					// a comment, so proxies do not close an idle stream
+					out.write(":\n\n");
+					out.flush();
+					continue;
+				}
+				// write all buffered events, then tell an overflowed client at once
+				while ( e != null ) {
+					feed.write(out, e);
+					delivered = e.version;
+					e = subscription.poll();
+				}
+				if ( subscription.isOverflowed() ) {
+					// the events after the delivered ones were dropped
+					feed.write(out, ChangeFeed.OVERFLOW, delivered);
+					out.flush();
+					return;
+				}
+				out.flush();
+			}
+		}
+		catch ( InterruptedException ex ) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			subscription.close();
+		}
 	}
 
 	public void doUnlock(StaplerRequest req, StaplerResponse rsp)
@@ -0,0 +1,57 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.actions;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+
+import jenkins.model.Jenkins;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.ResourceQuery;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves a single resource as JSON under
+ * <code>/lockable-resources/resource/NAME</code>, with the fields given by
+ * the <code>fields</code> parameter, see {@link ResourceQuery#FIELDS}.
+ */
+public class ResourceEndpoint {
+
+	private final LockableResource resource;
+
+	ResourceEndpoint(LockableResource resource) {
+		this.resource = resource;
+	}
+
+	public void doIndex(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+		Set<String> fields;
+		try {
+			fields = ResourceQuery.parseFields(req.getParameter("fields"));
+		}
+		catch ( IllegalArgumentException ex ) {
+			rsp.sendError(400, ex.getMessage());
+			return;
+		}
+
+		rsp.setContentType("application/json;charset=UTF-8");
+		Writer out = rsp.getCompressedWriter(req);
+		try {
+			ResourceQuery.toJSON(resource, fields).write(out);
+		}
+		finally {
+			out.close();
+		}
+	}
+}
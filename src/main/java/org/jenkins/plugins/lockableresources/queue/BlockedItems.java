@@ -0,0 +1,158 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+
+/**
+ * Keeps track of which queue items are blocked waiting for which resources,
+ * so that releasing a resource only wakes up the queue when someone is
+ * actually waiting for it.
+ */
+public class BlockedItems {
+
+	/**
+	 * What one blocked item waits for.
+	 */
+	public static class Blocked {
+		public final int queueItemId;
+		public final Set<LockableResource> candidates;
+		// 0 for all candidates
+		public final int needed;
+		public final long since;
+
+		Blocked(int queueItemId, Set<LockableResource> candidates, int needed, long since) {
+			this.queueItemId = queueItemId;
+			this.candidates = candidates;
+			this.needed = needed;
+			this.since = since;
+		}
+	}
+
+	private final Map<Integer,Set<LockableResource>> candidatesByItem = new HashMap<Integer,Set<LockableResource>>();
+	private final Map<LockableResource,Set<Integer>> itemsByResource = new HashMap<LockableResource,Set<Integer>>();
+	// System.nanoTime() at which each item was first blocked
+	private final Map<Integer,Long> blockedSince = new HashMap<Integer,Long>();
+	private final Map<Integer,Integer> neededByItem = new HashMap<Integer,Integer>();
+
+	/**
+	 * Records that a queue item is blocked until one of the candidates is free.
+	 *
+	 * @param queueItemId the blocked item
+	 * @param candidates the resources which would let it progress
+	 */
+	public void block(int queueItemId, Set<LockableResource> candidates) {
+		block(queueItemId, candidates, 0);
+	}
+
+	/**
+	 * Same as {@link #block(int, Set)}, remembering how many of the
+	 * candidates the item needs.
+	 *
+	 * @param needed the number of candidates needed, 0 for all of them
+	 */
+	public synchronized void block(int queueItemId, Set<LockableResource> candidates, int needed) {
+		Set<LockableResource> current = candidatesByItem.get(queueItemId);
+		if ( current == candidates ) {
+			neededByItem.put(queueItemId, needed);
+			return;
+		}
+		Long since = blockedSince.get(queueItemId);
+		if ( current != null ) unblock(queueItemId);
+		candidatesByItem.put(queueItemId, candidates);
+		neededByItem.put(queueItemId, needed);
+		blockedSince.put(queueItemId, since != null ? since : System.nanoTime());
+		for ( LockableResource r : candidates ) {
+			Set<Integer> items = itemsByResource.get(r);
+			if ( items == null ) {
+				items = new HashSet<Integer>();
+				itemsByResource.put(r, items);
+			}
+			items.add(queueItemId);
+		}
+	}
+
+	/**
+	 * Forgets a queue item, because it got its resources or left the queue.
+	 *
+	 * @param queueItemId the item
+	 */
+	public synchronized void unblock(int queueItemId) {
+		Set<LockableResource> candidates = candidatesByItem.remove(queueItemId);
+		blockedSince.remove(queueItemId);
+		neededByItem.remove(queueItemId);
+		if ( candidates == null ) return;
+		for ( LockableResource r : candidates ) {
+			Set<Integer> items = itemsByResource.get(r);
+			if ( items != null ) {
+				items.remove(queueItemId);
+				if ( items.isEmpty() ) itemsByResource.remove(r);
+			}
+		}
+	}
+
+	/**
+	 * @param resources resources which just became free
+	 * @return the ids of the items waiting for any of them, in ascending order
+	 */
+	public synchronized Set<Integer> getWaitingItems(Collection<LockableResource> resources) {
+		Set<Integer> waiting = new TreeSet<Integer>();
+		for ( LockableResource r : resources ) {
+			Set<Integer> items = itemsByResource.get(r);
+			if ( items != null ) waiting.addAll(items);
+		}
+		return waiting;
+	}
+
+	/**
+	 * @param queueItemId the item
+	 * @return how long the item has been blocked in nanoseconds, 0 if it is not
+	 */
+	public synchronized long getBlockedNanos(int queueItemId) {
+		Long since = blockedSince.get(queueItemId);
+		return since != null ? System.nanoTime() - since : 0;
+	}
+
+	/**
+	 * @return all blocked items, the longest blocked first
+	 */
+	public synchronized List<Blocked> getBlocked() {
+		List<Blocked> blocked = new ArrayList<Blocked>(candidatesByItem.size());
+		for ( Map.Entry<Integer,Set<LockableResource>> e : candidatesByItem.entrySet() ) {
+			int id = e.getKey();
+			blocked.add(new Blocked(id, e.getValue(), neededByItem.get(id), blockedSince.get(id)));
+		}
+		Collections.sort(blocked, new Comparator<Blocked>() {
+			public int compare(Blocked a, Blocked b) {
+				if ( a.since != b.since ) return a.since - b.since < 0 ? -1 : 1;
+				return a.queueItemId - b.queueItemId;
+			}
+		});
+		return blocked;
+	}
+
+	public synchronized boolean isBlocked(int queueItemId) {
+		return candidatesByItem.containsKey(queueItemId);
+	}
+
+	public synchronized int size() {
+		return candidatesByItem.size();
+	}
+}
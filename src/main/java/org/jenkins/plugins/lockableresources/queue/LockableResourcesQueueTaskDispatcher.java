@@ -19,11 +19,13 @@ import hudson.model.queue.QueueTaskDispatcher;
 import hudson.model.queue.CauseOfBlockage;
 
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jenkins.plugins.lockableresources.LockableResource;
 import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.LockableResourcesMetrics;
 import org.jenkins.plugins.lockableresources.RequiredResourcesParameterValue;
 
 @Extension
@@ -32,6 +34,11 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
 	static final Logger LOGGER = Logger
 			.getLogger(LockableResourcesQueueTaskDispatcher.class.getName());
 
+	private static final long PURGE_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+	private final LockableResourcesStructCache resolved = new LockableResourcesStructCache();
+	private volatile long lastPurge = System.currentTimeMillis();
+
 	@Override
 	public CauseOfBlockage canRun(Queue.Item item) {
 		// Skip locking for multiple configuration projects,
@@ -44,45 +51,113 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
 			if (project == null)
 				return null;
 
-			LockableResourcesStruct resources = null;
-			for ( ParametersAction pa : item.getActions(ParametersAction.class) ) {
-				for ( ParameterValue pv : pa.getParameters() ) {
-					if ( pv instanceof RequiredResourcesParameterValue ) {
-						resources = new LockableResourcesStruct((RequiredResourcesParameterValue)pv);
-						break;
-					}
-				}
+			LockableResourcesManager manager = LockableResourcesManager.get();
+			long start = System.nanoTime();
+			try {
+				return canRun(item, project, manager);
 			}
-			if ( resources == null ) resources = Utils.requiredResources(project);
-			if ( resources == null || resources.required == null ) {
-				return null;
+			finally {
+				manager.getMetrics().recordCanRun(System.nanoTime() - start);
 			}
+		}
+		catch ( RuntimeException ex ) {
+			LOGGER.log(Level.SEVERE, "Unexpected exception!", ex);
+			throw ex;
+		}
+	}
 
-			int resourceNumber;
-			try {
-				resourceNumber = Integer.parseInt(resources.requiredNumber);
-			} catch (NumberFormatException e) {
-				resourceNumber = 0;
-			}
+	private CauseOfBlockage canRun(Queue.Item item, AbstractProject<?, ?> project, LockableResourcesManager manager) {
+		purgeIfDue(manager);
+		LockableResourcesStruct resources = getRequiredResources(item, project, manager);
+		if ( resources == null || resources.required == null ) {
+			return null;
+		}
 
-			LOGGER.log(Level.FINEST, "{0} trying to get resources with these details: {1}",
-					new Object[]{project.getFullName(), resources});
+		int resourceNumber;
+		try {
+			resourceNumber = Integer.parseInt(resources.requiredNumber);
+		} catch (NumberFormatException e) {
+			resourceNumber = 0;
+		}
 
-			Collection<LockableResource> selected = LockableResourcesManager.get().queue(
-					resources, item, project.getFullName(), resourceNumber);
+		LOGGER.log(Level.FINEST, "{0} trying to get resources with these details: {1}",
+				new Object[]{project.getFullName(), resources});
 
-			if (selected != null) {
-				LOGGER.log(Level.FINEST, "{0} reserved resources {1}",
-						new Object[]{project.getFullName(), selected});
-				return null;
-			} else {
-				LOGGER.log(Level.FINEST, "{0} waiting for resources", project.getFullName());
-				return new BecauseResourcesLocked(resources);
+		if ( manager.isLeftOutOfBatch(item.id) ) {
+			LOGGER.log(Level.FINEST, "{0} got no resources in the batch assignment", project.getFullName());
+			manager.getBlockedItems().block(item.id, resources.required, resourceNumber);
+			return new BecauseResourcesLocked(resources);
+		}
+
+		Collection<LockableResource> selected = manager.queue(
+				resources, item, project.getFullName(), resourceNumber);
+
+		LockableResourcesMetrics metrics = manager.getMetrics();
+		metrics.recordSelection(selected != null);
+		if (selected != null) {
+			LOGGER.log(Level.FINEST, "{0} reserved resources {1}",
+					new Object[]{project.getFullName(), selected});
+			metrics.recordWait(resources.requiredNames, manager.getBlockedItems().getBlockedNanos(item.id));
+			manager.getBlockedItems().unblock(item.id);
+			resolved.remove(item.id);
+			return null;
+		} else {
+			LOGGER.log(Level.FINEST, "{0} waiting for resources", project.getFullName());
+			manager.getBlockedItems().block(item.id, resources.required, resourceNumber);
+			return new BecauseResourcesLocked(resources);
+		}
+	}
+
+	/**
+	 * Resolves the resources required by a queue item, reusing the result of
+	 * previous passes as long as neither the item's requirements nor the
+	 * resources configuration changed.
+	 */
+	private LockableResourcesStruct getRequiredResources(Queue.Item item,
+	                                                     AbstractProject<?, ?> project,
+	                                                     LockableResourcesManager manager) {
+		RequiredResourcesParameterValue param = null;
+		for ( ParametersAction pa : item.getActions(ParametersAction.class) ) {
+			for ( ParameterValue pv : pa.getParameters() ) {
+				if ( pv instanceof RequiredResourcesParameterValue ) {
+					param = (RequiredResourcesParameterValue)pv;
+					break;
+				}
 			}
+			if ( param != null ) break;
 		}
-		catch ( RuntimeException ex ) {
-			LOGGER.log(Level.SEVERE, "Unexpected exception!", ex);
-			throw ex;
+		Object source;
+		if ( param != null ) {
+			source = param;
+		}
+		else {
+			source = Utils.requiredResourcesProperty(project);
+			if ( source == null ) return null;
+		}
+
+		long generation = manager.getConfigGeneration();
+		LockableResourcesStruct resources = resolved.get(item.id, generation, source);
+		if ( resources == null ) {
+			if ( param != null ) {
+				resources = new LockableResourcesStruct(param);
+			}
+			else {
+				resources = Utils.requiredResources(project);
+			}
+			if ( resources != null ) {
+				resolved.put(item.id, generation, source, resources);
+			}
+		}
+		return resources;
+	}
+
+	// forget about items which left the queue without getting their resources
+	private void purgeIfDue(LockableResourcesManager manager) {
+		long now = System.currentTimeMillis();
+		if ( now - lastPurge < PURGE_INTERVAL ) return;
+		lastPurge = now;
+		for ( int id : resolved.purge(Queue.getInstance()) ) {
+			manager.forgetQueueItem(id);
 		}
 	}
 
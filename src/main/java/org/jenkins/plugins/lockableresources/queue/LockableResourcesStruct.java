@@ -21,6 +21,7 @@ import org.jenkins.plugins.lockableresources.LockableResource;
 import org.jenkins.plugins.lockableresources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.RequiredResourcesParameterValue;
 import org.jenkins.plugins.lockableresources.RequiredResourcesProperty;
+import org.jenkins.plugins.lockableresources.ResourceIdSet;
 
 public class LockableResourcesStruct {
 
@@ -29,6 +30,10 @@ public class LockableResourcesStruct {
 	public final String requiredVar;
 	public final String requiredNumber;
 
+	// ids of the required resources, looked up once per configuration generation
+	private transient ResourceIdSet requiredIds;
+	private transient long requiredIdsGeneration;
+
 	public LockableResourcesStruct(RequiredResourcesProperty property, EnvVars env) {
 		this(
 				property.getResourceNames(),
@@ -42,22 +47,44 @@ public class LockableResourcesStruct {
 		this(param.value, null, null, new EnvVars());
 	}
 
+	/**
+	 * For tests, which resolve the resources themselves.
+	 *
+	 * @param required the resources, already resolved by the caller
+	 * @param requiredNumber how many of them are needed, null for all
+	 */
+	LockableResourcesStruct( Set<LockableResource> required, String requiredNumber ) {
+		this.requiredNames = null;
+		this.required = Collections.unmodifiableSet(required);
+		this.requiredVar = null;
+		this.requiredNumber = Util.fixEmptyAndTrim(requiredNumber);
+	}
+
 	private LockableResourcesStruct( String requiredNames, String requiredVar, String requiredNumber, EnvVars env ) {
-		Set<LockableResource> required = new LinkedHashSet<LockableResource>();
+		Set<LockableResource> required = Collections.emptySet();
 		requiredNames = Util.fixEmptyAndTrim(requiredNames);
 		if ( requiredNames != null ) {
+			LockableResourcesManager manager = LockableResourcesManager.get();
 			if ( requiredNames.startsWith(Constants.GROOVY_LABEL_MARKER) ) {
-				required.addAll(LockableResourcesManager.get().getResourcesForExpression(requiredNames, env));
+				required = new LinkedHashSet<LockableResource>(manager.getResourcesForExpression(requiredNames, env));
 			}
 			else {
-				for ( String name : requiredNames.split("\\s+") ) {
-					name = env.expand(name);
-					LockableResource r = LockableResourcesManager.get().fromName(name);
-					if (r != null) {
-						required.add(r);
-					}
-					else {
-						required.addAll(LockableResourcesManager.get().getResourcesWithLabel(name));
+				String[] names = requiredNames.split("\\s+");
+				if ( names.length == 1 && manager.fromName(env.expand(names[0])) == null ) {
+					// a single label, share the manager's set instead of copying it
+					required = manager.getResourcesWithLabel(env.expand(names[0]));
+				}
+				else {
+					required = new LinkedHashSet<LockableResource>();
+					for ( String name : names ) {
+						name = env.expand(name);
+						LockableResource r = manager.fromName(name);
+						if (r != null) {
+							required.add(r);
+						}
+						else {
+							required.addAll(manager.getResourcesWithLabel(name));
+						}
 					}
 				}
 			}
@@ -72,6 +99,20 @@ public class LockableResourcesStruct {
 		this.requiredNumber = requiredNumber;
 	}
 
+	/**
+	 * @param manager the manager the required resources were resolved with
+	 * @return the ids of the required resources for the current configuration
+	 */
+	public synchronized ResourceIdSet getRequiredIds(LockableResourcesManager manager) {
+		long generation = manager.getConfigGeneration();
+		if ( requiredIds == null || requiredIdsGeneration != generation ) {
+			requiredIds = manager.getResourceIds(required);
+			requiredIdsGeneration = generation;
+		}
+		return requiredIds;
+	}
+
+	@Override
 	public String toString() {
 		return "Required resources: " + this.required +
 			", Variable name: " + this.requiredVar +
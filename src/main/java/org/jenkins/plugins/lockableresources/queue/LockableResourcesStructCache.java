@@ -0,0 +1,82 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2015, SAP SE                                          *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.queue;
+
+import hudson.model.Queue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolved resource requirements of the queue items, so the dispatcher does
+ * not expand names, labels and groovy expressions again on every pass.
+ *
+ * An entry is only valid for the configuration generation it was resolved
+ * at, and for the same source of requirements (the resources parameter
+ * value, or the job property).
+ */
+class LockableResourcesStructCache {
+
+	private static class Entry {
+		final long generation;
+		final Object source;
+		final LockableResourcesStruct resources;
+
+		Entry(long generation, Object source, LockableResourcesStruct resources) {
+			this.generation = generation;
+			this.source = source;
+			this.resources = resources;
+		}
+	}
+
+	private final Map<Integer,Entry> entries = new HashMap<Integer,Entry>();
+
+	/**
+	 * @return the cached requirements, or null if missing or outdated
+	 */
+	synchronized LockableResourcesStruct get(int queueItemId, long generation, Object source) {
+		Entry e = entries.get(queueItemId);
+		if ( e == null ) return null;
+		if ( e.generation != generation || !e.source.equals(source) ) {
+			entries.remove(queueItemId);
+			return null;
+		}
+		return e.resources;
+	}
+
+	synchronized void put(int queueItemId, long generation, Object source, LockableResourcesStruct resources) {
+		entries.put(queueItemId, new Entry(generation, source, resources));
+	}
+
+	synchronized void remove(int queueItemId) {
+		entries.remove(queueItemId);
+	}
+
+	/**
+	 * Drops the entries of items which are not in the queue anymore.
+	 *
+	 * @return the ids of the dropped items
+	 */
+	synchronized List<Integer> purge(Queue queue) {
+		List<Integer> removed = new ArrayList<Integer>();
+		for ( Integer id : entries.keySet() ) {
+			if ( queue.getItem(id) == null ) removed.add(id);
+		}
+		for ( Integer id : removed ) {
+			entries.remove(id);
+		}
+		return removed;
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+}
@@ -47,4 +47,12 @@ public class Utils {
 
 		return null;
 	}
+
+	public static RequiredResourcesProperty requiredResourcesProperty(
+			AbstractProject<?, ?> project) {
+		if (project instanceof MatrixConfiguration) {
+			project = (AbstractProject<?, ?>) project.getParent();
+		}
+		return project.getProperty(RequiredResourcesProperty.class);
+	}
 }
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jenkins.plugins.lockableresources.actions.LockedResourcesBuildAction;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStructs;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BackfillSchedulerTest {
+
+	private static Collection<LockableResource> queue(LockableResourcesManager manager, int queueItemId,
+	                                                  String project, int number) {
+		LockableResourcesStruct required = LockableResourcesStructs.of(
+				manager.getResourcesWithLabel("pool"), Integer.toString(number));
+		return manager.queue(required, queueItemId, new LockedResourcesBuildAction(), project, number);
+	}
+
+	/**
+	 * Test that a refused large request holds back younger requests which
+	 * would delay it, but lets through those which finish in time.
+	 */
+	@Test
+	public void testBackfill() throws Exception {
+		System.out.println("backfill");
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for ( int i = 0; i < 4; i++ ) {
+			resources.add(new LockableResource("r" + i, null, "pool", null, null));
+		}
+		List<String> none = Collections.emptyList();
+		LockableResourcesManager instance = new LockableResourcesManager(resources, none,
+				Collections.<String,String>emptyMap());
+		BackfillScheduler scheduler = instance.getBackfillScheduler();
+		scheduler.recordHold("long", TimeUnit.MINUTES.toNanos(10));
+		scheduler.recordHold("longer", TimeUnit.HOURS.toNanos(1));
+		scheduler.recordHold("quick", TimeUnit.SECONDS.toNanos(1));
+
+		Collection<LockableResource> first = queue(instance, 1, "long", 1);
+		assertNotNull(first);
+		assertNull(queue(instance, 2, "big", 4));
+		assertEquals(1, scheduler.size());
+
+		// would still hold a resource when the big one could start
+		assertNull(queue(instance, 3, "longer", 1));
+		assertNull(queue(instance, 4, "unknown", 1));
+		assertEquals(2, instance.getMetrics().getHeldBack());
+		// done long before, so nothing was held back from it
+		Collection<LockableResource> quick = queue(instance, 5, "quick", 1);
+		assertNotNull(quick);
+		assertEquals(0, instance.getMetrics().getBackfilled());
+		assertEquals(2, instance.getMetrics().getHeldBack());
+		assertEquals(1, scheduler.size());
+
+		for ( LockableResource r : first ) r.unqueue();
+		for ( LockableResource r : quick ) r.unqueue();
+		assertNotNull(queue(instance, 2, "big", 4));
+		assertEquals(0, scheduler.size());
+		assertEquals(1, instance.getMetrics().getReservationWait().getCount());
+		instance.stop();
+	}
+
+	/**
+	 * Test that without any hold times a refused large request holds back
+	 * every resource it waits for.
+	 */
+	@Test
+	public void testUnknownShadow() throws Exception {
+		System.out.println("unknownShadow");
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for ( int i = 0; i < 4; i++ ) {
+			resources.add(new LockableResource("r" + i, null, "pool", null, null));
+		}
+		List<String> none = Collections.emptyList();
+		LockableResourcesManager instance = new LockableResourcesManager(resources, none,
+				Collections.<String,String>emptyMap());
+		BackfillScheduler scheduler = instance.getBackfillScheduler();
+
+		Collection<LockableResource> first = queue(instance, 1, "first", 1);
+		assertNotNull(first);
+		assertNull(queue(instance, 2, "big", 4));
+		assertEquals(1, scheduler.size());
+		assertEquals(-1, scheduler.getExpectedHold("first"));
+
+		// small requests are refused although three resources are free
+		assertNull(queue(instance, 3, "small", 1));
+		assertNull(queue(instance, 4, "small", 1));
+		assertEquals(2, instance.getMetrics().getHeldBack());
+		assertEquals(0, instance.getMetrics().getBackfilled());
+		assertEquals(3, instance.getFreeResourceAmount("pool"));
+
+		for ( LockableResource r : first ) r.unqueue();
+		assertNotNull(queue(instance, 2, "big", 4));
+		assertEquals(0, scheduler.size());
+		instance.stop();
+	}
+
+	/**
+	 * Test that the expected hold time follows the recorded ones.
+	 */
+	@Test
+	public void testExpectedHold() {
+		System.out.println("expectedHold");
+		BackfillScheduler instance = new BackfillScheduler(BackfillScheduler.DEFAULT_MIN_SIZE);
+		assertEquals(-1, instance.getExpectedHold("project"));
+		instance.recordHold("project", 1000);
+		assertEquals(1000, instance.getExpectedHold("project"));
+		instance.recordHold("project", 2000);
+		assertTrue(instance.getExpectedHold("project") > 1000);
+		assertTrue(instance.getExpectedHold("project") < 2000);
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.jenkins.plugins.lockableresources.queue.BlockedItems;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BatchMatcherTest {
+
+	LockableResource scarce;
+	LockableResource plenty1;
+	LockableResource plenty2;
+	ResourceStateIndex index;
+	BlockedItems blocked;
+
+	@Before
+	public void setUp() {
+		scarce = new LockableResource("scarce", null, null, null, null);
+		plenty1 = new LockableResource("plenty1", null, null, null, null);
+		plenty2 = new LockableResource("plenty2", null, null, null, null);
+		index = new ResourceStateIndex(Arrays.asList(scarce, plenty1, plenty2));
+		blocked = new BlockedItems();
+	}
+
+	private static Set<LockableResource> set(LockableResource... resources) {
+		return new LinkedHashSet<LockableResource>(Arrays.asList(resources));
+	}
+
+	private ResourceIdSet assigned(BatchMatcher.Plan plan, int queueItemId) {
+		long[] ids = plan.getAssigned(queueItemId);
+		return ids != null ? new ResourceIdSet(ids) : null;
+	}
+
+	/**
+	 * Test that an item which can use any resource leaves the scarce one
+	 * to the item which needs it, even though it was blocked first.
+	 */
+	@Test
+	public void testLeavesScarceResource() {
+		System.out.println("leavesScarceResource");
+		blocked.block(1, set(scarce, plenty1, plenty2), 1);
+		blocked.block(2, Collections.singleton(scarce), 1);
+		BatchMatcher.Plan plan = BatchMatcher.match(index, blocked.getBlocked(), 0, 0);
+		assertEquals("[1]", assigned(plan, 1).toString());
+		assertEquals("[0]", assigned(plan, 2).toString());
+		assertFalse(plan.isLeftOut(1));
+		assertFalse(plan.isLeftOut(2));
+	}
+
+	/**
+	 * Test that an item which cannot be served without leaving an older
+	 * one short is left out, and the older ones keep their assignment.
+	 */
+	@Test
+	public void testLeftOut() {
+		System.out.println("leftOut");
+		blocked.block(1, set(plenty1, plenty2), 1);
+		blocked.block(2, Collections.singleton(scarce), 1);
+		blocked.block(3, set(scarce, plenty1), 2);
+		BatchMatcher.Plan plan = BatchMatcher.match(index, blocked.getBlocked(), 0, 0);
+		assertEquals("[1]", assigned(plan, 1).toString());
+		assertEquals("[0]", assigned(plan, 2).toString());
+		assertNull(assigned(plan, 3));
+		assertTrue(plan.isLeftOut(3));
+		assertFalse(plan.isLeftOut(4));
+	}
+
+	/**
+	 * Test that items outside the plan only see what nobody was assigned,
+	 * and that consumed assignments are given up.
+	 */
+	@Test
+	public void testRestrict() {
+		System.out.println("restrict");
+		blocked.block(1, Collections.singleton(plenty1), 1);
+		plenty2.setReservedBy("user");
+		index = new ResourceStateIndex(Arrays.asList(scarce, plenty1, plenty2));
+		BatchMatcher.Plan plan = BatchMatcher.match(index, blocked.getBlocked(), 0, 0);
+		long[] free = index.free(index.idsOf(set(scarce, plenty1, plenty2)));
+		assertEquals("[1]", new ResourceIdSet(plan.restrict(1, free)).toString());
+		assertEquals("[0]", new ResourceIdSet(plan.restrict(7, free)).toString());
+		plan.consumed(1);
+		assertEquals("[0, 1]", new ResourceIdSet(plan.restrict(7, free)).toString());
+	}
+
+	/**
+	 * Test that the published plan is only handed out for the configuration
+	 * it was made for.
+	 */
+	@Test
+	public void testReplan() {
+		System.out.println("replan");
+		BatchMatcher instance = new BatchMatcher();
+		assertNull(instance.getPlan(0));
+		blocked.block(1, Collections.singleton(scarce), 1);
+		BatchMatcher.Plan plan = instance.replan(index, 3, blocked, 0);
+		assertSame(plan, instance.getPlan(3));
+		assertEquals("[0]", assigned(instance.getPlan(3), 1).toString());
+		assertNull(instance.getPlan(4));
+	}
+
+	/**
+	 * Test that an augmenting path through many items moves each of them to
+	 * its other candidate.
+	 */
+	@Test
+	public void testLongPath() {
+		System.out.println("longPath");
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for ( int i = 0; i <= 40; i++ ) {
+			resources.add(new LockableResource("r" + i, null, null, null, null));
+		}
+		index = new ResourceStateIndex(resources);
+		for ( int i = 0; i < 40; i++ ) {
+			blocked.block(i + 1, set(resources.get(i), resources.get(i + 1)), 1);
+		}
+		blocked.block(41, Collections.singleton(resources.get(0)), 1);
+		BatchMatcher.Plan plan = BatchMatcher.match(index, blocked.getBlocked(), 0, 0);
+		assertEquals("[0]", assigned(plan, 41).toString());
+		for ( int i = 0; i < 40; i++ ) {
+			assertEquals("[" + (i + 1) + "]", assigned(plan, i + 1).toString());
+		}
+	}
+}
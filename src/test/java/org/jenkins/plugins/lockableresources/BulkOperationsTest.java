@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.sf.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BulkOperationsTest {
+
+	LockableResourcesManager manager;
+
+	@Before
+	public void setUp() {
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for ( int i = 0; i < 4; i++ ) {
+			resources.add(new LockableResource("r" + i, null, "pool", null, null));
+		}
+		List<String> none = Collections.emptyList();
+		manager = new LockableResourcesManager(resources, none, Collections.<String,String>emptyMap());
+	}
+
+	private static List<BulkOperations.Operation> parse(String json) {
+		return BulkOperations.parse(JSONObject.fromObject(json));
+	}
+
+	private static List<String> statuses(BulkOperations.Outcome outcome) {
+		List<String> statuses = new ArrayList<String>();
+		for ( BulkOperations.Result r : outcome.results ) {
+			statuses.add(r.status);
+		}
+		return statuses;
+	}
+
+	/**
+	 * Test that malformed batches are rejected.
+	 */
+	@Test
+	public void testParse() {
+		System.out.println("parse");
+		assertEquals(2, parse("{operations: [{action: 'reserve', label: 'pool', count: 2},"
+				+ " {action: 'reset', resources: ['r1']}]}").size());
+		for ( String json : new String[] {
+				"{}",
+				"{operations: [{action: 'lock', resources: ['r1']}]}",
+				"{operations: [{action: 'reset'}]}",
+				"{operations: [{action: 'reset', label: 'pool', count: 1}]}",
+				"{operations: [{action: 'reserve', label: 'pool'}]}" } ) {
+			try {
+				parse(json);
+				fail("accepted " + json);
+			}
+			catch ( IllegalArgumentException ex ) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Test that a batch is applied completely.
+	 */
+	@Test
+	public void testApply() {
+		System.out.println("apply");
+		manager.reserve(Arrays.asList(manager.fromName("r0")), "other");
+		BulkOperations.Outcome outcome = manager.apply(parse(
+				"{operations: [{action: 'reserve', label: 'pool', count: 2},"
+				+ " {action: 'unreserve', resources: ['r0']}]}"), "user", true);
+		assertTrue(outcome.applied);
+		assertEquals(Arrays.asList("ok", "ok", "ok"), statuses(outcome));
+		assertEquals("r1", outcome.results.get(0).resource);
+		assertEquals("user", manager.fromName("r1").getReservedBy());
+		assertEquals("user", manager.fromName("r2").getReservedBy());
+		assertFalse(manager.fromName("r0").isReserved());
+		assertEquals(Collections.emptyList(), manager.checkCaches());
+	}
+
+	/**
+	 * Test that nothing is changed if one operation fails.
+	 */
+	@Test
+	public void testAllOrNothing() {
+		System.out.println("allOrNothing");
+		manager.reserve(Arrays.asList(manager.fromName("r3")), "other");
+		BulkOperations.Outcome outcome = manager.apply(parse(
+				"{operations: [{action: 'reserve', resources: ['r0', 'r3', 'missing']},"
+				+ " {action: 'unreserve', resources: ['r3']},"
+				+ " {action: 'reserve', label: 'pool', count: 3}]}"), "user", false);
+		assertFalse(outcome.applied);
+		assertEquals(Arrays.asList("aborted", "conflict", "not_found", "duplicate", "insufficient"),
+				statuses(outcome));
+		assertFalse(manager.fromName("r0").isReserved());
+		assertEquals("other", manager.fromName("r3").getReservedBy());
+
+		outcome = manager.apply(parse("{operations: [{action: 'unreserve', resources: ['r3']}]}"), "user", false);
+		assertFalse(outcome.applied);
+		assertEquals(Arrays.asList("forbidden"), statuses(outcome));
+	}
+
+	/**
+	 * Test that nobody reserves without a user, whether the resources are
+	 * named or selected by label.
+	 */
+	@Test
+	public void testAnonymousReserve() {
+		System.out.println("anonymousReserve");
+		BulkOperations.Outcome outcome = manager.apply(parse(
+				"{operations: [{action: 'reserve', label: 'pool', count: 2}]}"), null, false);
+		assertFalse(outcome.applied);
+		assertEquals(Arrays.asList("forbidden"), statuses(outcome));
+		assertEquals("pool", outcome.results.get(0).label);
+
+		outcome = manager.apply(parse(
+				"{operations: [{action: 'reserve', resources: ['r0']}]}"), null, false);
+		assertFalse(outcome.applied);
+		assertEquals(Arrays.asList("forbidden"), statuses(outcome));
+		for ( LockableResource r : manager.getResources() ) {
+			assertFalse(r.isReserved());
+		}
+	}
+
+	/**
+	 * Test that only the user who reserved a resource, or an administrator,
+	 * may unreserve it, as when unreserving a single resource.
+	 */
+	@Test
+	public void testUnreserveOwner() {
+		System.out.println("unreserveOwner");
+		manager.reserve(Arrays.asList(manager.fromName("r1")), "other");
+		manager.reserve(Arrays.asList(manager.fromName("r2")), "user");
+		BulkOperations.Outcome outcome = manager.apply(parse(
+				"{operations: [{action: 'unreserve', resources: ['r0', 'r1', 'r2']}]}"), "user", false);
+		assertFalse(outcome.applied);
+		assertEquals(Arrays.asList("forbidden", "forbidden", "aborted"), statuses(outcome));
+		assertEquals("Not reserved", outcome.results.get(0).message);
+		assertEquals("Reserved by other", outcome.results.get(1).message);
+
+		outcome = manager.apply(parse("{operations: [{action: 'unreserve', resources: ['r2']}]}"), null, false);
+		assertFalse(outcome.applied);
+		assertEquals(Arrays.asList("forbidden"), statuses(outcome));
+
+		outcome = manager.apply(parse("{operations: [{action: 'unreserve', resources: ['r2']}]}"), "user", false);
+		assertTrue(outcome.applied);
+		outcome = manager.apply(parse("{operations: [{action: 'unreserve', resources: ['r0', 'r1']}]}"), "admin", true);
+		assertTrue(outcome.applied);
+		for ( LockableResource r : manager.getResources() ) {
+			assertFalse(r.isReserved());
+		}
+	}
+}
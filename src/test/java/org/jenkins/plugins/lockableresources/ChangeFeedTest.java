@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package org.jenkins.plugins.lockableresources;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ChangeFeedTest {
+
+	/**
+	 * Test that subscribers get the events published after they subscribed,
+	 * in order and with increasing versions.
+	 */
+	@Test
+	public void testPublish() throws Exception {
+		System.out.println("publish");
+		ChangeFeed instance = new ChangeFeed(8, 8, 2);
+		instance.publish(ChangeFeed.CONFIG, null, null);
+		ChangeFeed.Subscription subscription = instance.subscribe(null);
+		assertEquals(1, subscription.getVersion());
+		assertTrue(subscription.getBacklog().isEmpty());
+		assertFalse(subscription.isResync());
+		instance.publish(ChangeFeed.LOCKED, "r1", "job #1");
+		instance.publish(ChangeFeed.UNLOCKED, "r1", "job #1");
+
+		ChangeFeed.Event e = subscription.poll(1, TimeUnit.SECONDS);
+		assertEquals(2, e.version);
+		assertEquals(ChangeFeed.LOCKED, e.type);
+		assertEquals("r1", e.resource);
+		assertEquals("job #1", e.detail);
+		assertEquals(3, subscription.poll().version);
+		assertNull(subscription.poll());
+		assertEquals(3, instance.getVersion());
+
+		assertEquals(1, instance.getSubscriptions());
+		subscription.close();
+		assertEquals(0, instance.getSubscriptions());
+	}
+
+	/**
+	 * Test that a reconnecting client gets what it missed from the ring,
+	 * and has to resync if the ring no longer has it all.
+	 */
+	@Test
+	public void testResume() {
+		System.out.println("resume");
+		ChangeFeed instance = new ChangeFeed(4, 8, 8);
+		for ( int i = 0; i < 6; i++ ) {
+			instance.publish(ChangeFeed.RESERVED, "r" + i, "user");
+		}
+
+		ChangeFeed.Subscription subscription = instance.subscribe(instance.id(3));
+		assertFalse(subscription.isResync());
+		assertEquals(3, subscription.getBacklog().size());
+		assertEquals(4, subscription.getBacklog().get(0).version);
+		assertEquals("r5", subscription.getBacklog().get(2).resource);
+
+		// up to date
+		subscription = instance.subscribe(instance.id(6));
+		assertFalse(subscription.isResync());
+		assertTrue(subscription.getBacklog().isEmpty());
+
+		// version 2 was overwritten
+		subscription = instance.subscribe(instance.id(1));
+		assertTrue(subscription.isResync());
+		assertTrue(subscription.getBacklog().isEmpty());
+
+		// from before a restart, from the future, or garbage
+		assertTrue(instance.subscribe("0-3").isResync());
+		assertTrue(instance.subscribe(instance.id(7)).isResync());
+		assertTrue(instance.subscribe("garbage").isResync());
+	}
+
+	/**
+	 * Test that a subscriber which does not keep up is marked as overflowed
+	 * instead of holding up the publisher, and keeps what it buffered.
+	 */
+	@Test
+	public void testOverflow() {
+		System.out.println("overflow");
+		ChangeFeed instance = new ChangeFeed(16, 2, 8);
+		ChangeFeed.Subscription slow = instance.subscribe(null);
+		for ( int i = 0; i < 5; i++ ) {
+			instance.publish(ChangeFeed.QUEUED, "r" + i, "job");
+		}
+		assertTrue(slow.isOverflowed());
+		assertEquals(1, slow.poll().version);
+		assertEquals(2, slow.poll().version);
+		assertNull(slow.poll());
+
+		// the rest is still in the ring
+		ChangeFeed.Subscription resumed = instance.subscribe(instance.id(2));
+		assertEquals(3, resumed.getBacklog().size());
+		assertFalse(resumed.isOverflowed());
+	}
+
+	/**
+	 * Test that only so many clients may subscribe at once.
+	 */
+	@Test
+	public void testMaxSubscriptions() {
+		System.out.println("maxSubscriptions");
+		ChangeFeed instance = new ChangeFeed(4, 4, 1);
+		ChangeFeed.Subscription first = instance.subscribe(null);
+		assertNull(instance.subscribe(null));
+		first.close();
+		assertNotNull(instance.subscribe(null));
+	}
+
+	/**
+	 * Test that events are written in the server-sent events format.
+	 */
+	@Test
+	public void testWrite() throws Exception {
+		System.out.println("write");
+		ChangeFeed instance = new ChangeFeed(4, 4, 1);
+		instance.publish(ChangeFeed.RESERVED, "r1", "user");
+		ChangeFeed.Subscription subscription = instance.subscribe(instance.id(0));
+		StringWriter out = new StringWriter();
+		instance.write(out, subscription.getBacklog().get(0));
+		instance.write(out, ChangeFeed.OVERFLOW, 1);
+		assertEquals("id: " + instance.id(1) + "\n"
+				+ "event: reserved\n"
+				+ "data: {\"version\":1,\"resource\":\"r1\",\"detail\":\"user\"}\n\n"
+				+ "id: " + instance.id(1) + "\n"
+				+ "event: overflow\n"
+				+ "data: {\"version\":1}\n\n", out.toString());
+	}
+}
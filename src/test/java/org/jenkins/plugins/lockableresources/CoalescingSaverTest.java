@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkins.plugins.lockableresources;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CoalescingSaverTest {
+
+	private static class CountingSave implements Runnable {
+		final AtomicInteger count = new AtomicInteger();
+		public void run() {
+			count.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Test that without a window every request is written right away.
+	 */
+	@Test
+	public void testSynchronous() {
+		System.out.println("synchronous");
+		CountingSave save = new CountingSave();
+		CoalescingSaver instance = new CoalescingSaver(save, 0);
+		instance.request();
+		instance.request();
+		assertEquals(2, save.count.get());
+		assertEquals(0, instance.getCoalescedSaves());
+		assertFalse(instance.isDirty());
+	}
+
+	/**
+	 * Test that requests within the window result in a single write.
+	 */
+	@Test(timeout = 30000)
+	public void testCoalesced() throws Exception {
+		System.out.println("coalesced");
+		CountingSave save = new CountingSave();
+		CoalescingSaver instance = new CoalescingSaver(save, 200);
+		for ( int i = 0; i < 100; i++ ) {
+			instance.request();
+		}
+		assertTrue(instance.isDirty());
+		while ( save.count.get() == 0 ) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, save.count.get());
+		assertEquals(99, instance.getCoalescedSaves());
+		instance.stop();
+	}
+
+	/**
+	 * Test that stopping writes what is pending.
+	 */
+	@Test
+	public void testStopFlushes() {
+		System.out.println("stop");
+		CountingSave save = new CountingSave();
+		CoalescingSaver instance = new CoalescingSaver(save, 60000);
+		instance.request();
+		assertEquals(0, save.count.get());
+		instance.stop();
+		assertEquals(1, save.count.get());
+		instance.request();
+		assertEquals(2, save.count.get());
+	}
+}
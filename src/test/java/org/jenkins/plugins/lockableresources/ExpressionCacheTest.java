@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkins.plugins.lockableresources;
+
+import groovy.lang.Binding;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ExpressionCacheTest {
+
+	ExpressionCache instance;
+
+	@Before
+	public void setUp() {
+		this.instance = new ExpressionCache(2);
+	}
+
+	/**
+	 * Test that an expression is only compiled once.
+	 */
+	@Test
+	public void testCreateScriptCachesCompiledClass() {
+		System.out.println("createScript");
+		Binding b1 = new Binding();
+		b1.setVariable("resourceName", "r1");
+		Binding b2 = new Binding();
+		b2.setVariable("resourceName", "r2");
+		assertEquals(Boolean.TRUE, instance.createScript("resourceName == 'r1'", b1).run());
+		assertEquals(Boolean.FALSE, instance.createScript("resourceName == 'r1'", b2).run());
+		assertEquals(1, instance.getMisses());
+		assertEquals(1, instance.getHits());
+		assertEquals(1, instance.size());
+		assertTrue(instance.getCompileTimeNanos() > 0);
+	}
+
+	/**
+	 * Test that the least recently used expression is evicted.
+	 */
+	@Test
+	public void testEviction() {
+		System.out.println("eviction");
+		Map<String,String> params = new HashMap<String,String>();
+		instance.createScript("1 == 1", new Binding(params));
+		instance.createScript("2 == 2", new Binding(params));
+		instance.createScript("1 == 1", new Binding(params));
+		instance.createScript("3 == 3", new Binding(params));
+		assertEquals(2, instance.size());
+		instance.createScript("1 == 1", new Binding(params));
+		assertEquals(3, instance.getMisses());
+		instance.createScript("2 == 2", new Binding(params));
+		assertEquals(4, instance.getMisses());
+	}
+}
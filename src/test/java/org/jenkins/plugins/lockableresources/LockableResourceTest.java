@@ -27,11 +27,16 @@ package org.jenkins.plugins.lockableresources;
 
 
 import hudson.model.AbstractBuild;
+import hudson.util.XStream2;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.openjdk.jol.info.GraphLayout;
 import static org.junit.Assert.*;
 
 /**
@@ -276,4 +281,79 @@ public class LockableResourceTest {
 		int expResult = 0;
 		int result = instance.hashCode();
 	}
+
+	/**
+	 * Test that resources survive a round trip through XStream.
+	 */
+	@Test
+	public void testXStreamRoundTrip() {
+		System.out.println("xstream");
+		XStream2 xs = new XStream2();
+		LockableResource r = new LockableResource("r2", "d2", " l1\tl2  l3 ", "user", "a=b");
+		LockableResource result = (LockableResource)xs.fromXML(xs.toXML(r));
+		assertEquals("r2", result.getName());
+		assertEquals("d2", result.getDescription());
+		assertEquals(Arrays.asList("l1", "l2", "l3"), new ArrayList<String>(result.getLabelSet()));
+		assertEquals("user", result.getReservedBy());
+		assertEquals("a=b", result.getProperties());
+		assertFalse(result.isQueued());
+	}
+
+	/**
+	 * Test that labels written as a list are read back.
+	 */
+	@Test
+	public void testXStreamLabelList() {
+		System.out.println("xstreamLabelList");
+		XStream2 xs = new XStream2();
+		String xml = "<org.jenkins.plugins.lockableresources.LockableResource>" +
+				"<name>r3</name>" +
+				"<labels><string>l1</string><string>l2</string></labels>" +
+				"<unknown>ignored</unknown>" +
+				"</org.jenkins.plugins.lockableresources.LockableResource>";
+		LockableResource result = (LockableResource)xs.fromXML(xml);
+		assertEquals("r3", result.getName());
+		assertNull(result.getDescription());
+		assertEquals("l1 l2", result.getLabels());
+		assertFalse(result.isReserved());
+	}
+
+	/**
+	 * Test that label changes keep the order and share the label strings.
+	 */
+	@Test
+	public void testLabelSet() {
+		System.out.println("labelSet");
+		LockableResource other = new LockableResource("r2", null, new String("l2") + " l3", null, null);
+		assertSame(instance.getLabelSet().toArray()[1], other.getLabelSet().toArray()[0]);
+
+		assertTrue(instance.getModifyableLabelSet().add("l3"));
+		assertFalse(instance.getModifyableLabelSet().add("l1"));
+		assertEquals("l1 l2 l3", instance.getLabels());
+		assertTrue(instance.getModifyableLabelSet().remove("l2"));
+		assertFalse(instance.getModifyableLabelSet().remove("l2"));
+		assertFalse(instance.getModifyableLabelSet().remove("never seen"));
+		assertEquals(Arrays.asList("l1", "l3"), new ArrayList<String>(instance.getLabelSet()));
+		assertTrue(instance.isValidLabel("l3"));
+		assertFalse(instance.isValidLabel("l2"));
+
+		instance.getModifyableLabelSet().clear();
+		assertNull(instance.getLabels());
+		assertTrue(instance.getLabelSet().isEmpty());
+	}
+
+	/**
+	 * Test that resources sharing their labels stay small, the label names
+	 * are kept once for all of them.
+	 */
+	@Test
+	public void testFootprint() {
+		System.out.println("footprint");
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for ( int i = 0; i < 1000; i++ ) {
+			resources.add(new LockableResource("resource-" + i, null, "android pool-" + (i % 10) + " lab", null, null));
+		}
+		long perResource = GraphLayout.parseInstance(resources).totalSize() / resources.size();
+		assertTrue("bytes per resource: " + perResource, perResource < 256);
+	}
 }
@@ -0,0 +1,482 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkins.plugins.lockableresources;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jenkins.plugins.lockableresources.actions.LockedResourcesBuildAction;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStructs;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class LockableResourcesManagerTest {
+
+	private static LockableResourcesManager manager(int count) {
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for ( int i = 0; i < count; i++ ) {
+			resources.add(new LockableResource("r" + i, null, (i % 2 == 0 ? "even" : "odd") + " lb" + (i % 3), null, null));
+		}
+		Map<String,String> aliases = new LinkedHashMap<String,String>();
+		aliases.put("pair", "even");
+		aliases.put("spare", "new");
+		return new LockableResourcesManager(resources, Arrays.asList("lb0", "lb1"), aliases);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static AbstractBuild<?, ?> build(String projectName, int number) {
+		AbstractProject project = mock(AbstractProject.class);
+		when(project.getFullName()).thenReturn(projectName);
+		AbstractBuild build = mock(AbstractBuild.class);
+		when(build.getParent()).thenReturn(project);
+		when(build.getFullDisplayName()).thenReturn(projectName + " #" + number);
+		return build;
+	}
+
+	private static List<LockableResource> queue(LockableResourcesManager manager, int queueItemId,
+	                                            String project, String label, int number) {
+		Collection<LockableResource> queued = manager.queue(
+				LockableResourcesStructs.of(manager.getResourcesWithLabel(label), Integer.toString(number)),
+				queueItemId, new LockedResourcesBuildAction(), project, number);
+		assertNotNull(queued);
+		return new ArrayList<LockableResource>(queued);
+	}
+
+	private static List<String> names(Collection<LockableResource> resources) {
+		List<String> names = new ArrayList<String>();
+		for ( LockableResource r : resources ) {
+			names.add(r.getName());
+		}
+		return names;
+	}
+
+	// compares the counters of every label and alias with counting the resources
+	private static void assertCounters(LockableResourcesManager manager) {
+		for ( String label : manager.getAllLabels() ) {
+			String resolved = manager.getLabelAliases().containsKey(label) ? manager.getLabelAliases().get(label) : label;
+			int total = 0, free = 0, queued = 0, locked = 0, reserved = 0;
+			for ( LockableResource r : manager.getResources() ) {
+				if ( !r.isValidLabel(resolved) ) continue;
+				total++;
+				if ( r.isFree() ) free++;
+				if ( r.isQueued() ) queued++;
+				if ( r.isLocked() ) locked++;
+				if ( r.isReserved() ) reserved++;
+			}
+			ResourceStateCounter counter = manager.getLabelState(label);
+			assertEquals(label, total, counter.getTotal());
+			assertEquals(label, free, counter.getFree());
+			assertEquals(label, free, manager.getFreeResourceAmount(label));
+			assertEquals(label, queued, counter.getQueued());
+			assertEquals(label, locked, counter.getLocked());
+			assertEquals(label, reserved, counter.getReserved());
+		}
+	}
+
+	/**
+	 * Test that the counters of every label and alias match counting the
+	 * resources after each kind of state transition.
+	 */
+	@Test
+	public void testLabelCounters() throws Exception {
+		System.out.println("labelCounters");
+		LockableResourcesManager instance = manager(10);
+		AbstractBuild<?, ?> build = build("job", 1);
+		assertCounters(instance);
+
+		List<LockableResource> queued = queue(instance, 1, "job", "odd", 2);
+		assertCounters(instance);
+		assertEquals(3, instance.getFreeResourceAmount("odd"));
+		assertTrue(instance.lock(names(queued), build));
+		assertCounters(instance);
+		assertEquals(2, instance.getLabelState("odd").getLocked());
+
+		// queued and given up again
+		queue(instance, 2, "other", "pair", 3);
+		assertCounters(instance);
+		assertEquals(2, instance.getFreeResourceAmount("even"));
+		instance.unlock(instance.getResourcesFromQueueItem(2), null);
+		assertCounters(instance);
+		assertEquals(5, instance.getFreeResourceAmount("pair"));
+
+		LockableResource r0 = instance.fromName("r0");
+		assertTrue(instance.reserve(Arrays.asList(r0), "user"));
+		assertCounters(instance);
+		assertEquals(1, instance.getLabelState("even").getReserved());
+
+		instance.unlock(queued, build);
+		assertCounters(instance);
+		instance.reset(Arrays.asList(r0));
+		assertCounters(instance);
+		assertEquals(5, instance.getFreeResourceAmount("odd"));
+		assertEquals(5, instance.getFreeResourceAmount("even"));
+		assertEquals(Collections.emptyList(), instance.checkCaches());
+		instance.stop();
+	}
+
+	/**
+	 * Test that adding and removing labels keeps the caches consistent
+	 * with a full rebuild.
+	 */
+	@Test
+	public void testLabelChanges() {
+		System.out.println("labelChanges");
+		LockableResourcesManager instance = manager(10);
+		assertEquals(Collections.emptyList(), instance.checkCaches());
+		LockableResource r3 = instance.fromName("r3");
+		LockableResource r5 = instance.fromName("r5");
+		instance.reserve(Arrays.asList(r3), "user");
+		long generation = instance.getConfigGeneration();
+
+		assertTrue(instance.addResourceLabel(r5, "new"));
+		assertTrue(instance.addResourceLabel(r3, "new"));
+		assertFalse(instance.addResourceLabel(r3, "new"));
+		assertEquals(Collections.emptyList(), instance.checkCaches());
+		assertEquals(Arrays.asList(r3, r5), new ArrayList<LockableResource>(instance.getResourcesWithLabel("new")));
+		assertEquals(Arrays.asList(r3, r5), new ArrayList<LockableResource>(instance.getResourcesWithLabel("spare")));
+		assertEquals(1, instance.getFreeResourceAmount("spare"));
+		assertTrue(instance.getConfigGeneration() > generation);
+
+		// moves r3 from the lb0 to the lb1 group, and r5 out of any group
+		assertTrue(instance.addResourceLabel(r3, "lb1"));
+		assertTrue(instance.removeResourceLabel(r3, "lb0"));
+		assertTrue(instance.removeResourceLabel(r5, "lb2"));
+		assertTrue(instance.addResourceLabel(r5, "lb0"));
+		assertTrue(instance.removeResourceLabel(r5, "lb0"));
+		assertEquals(Collections.emptyList(), instance.checkCaches());
+
+		assertTrue(instance.removeResourceLabel(r3, "new"));
+		assertTrue(instance.removeResourceLabel(r5, "new"));
+		assertFalse(instance.removeResourceLabel(r5, "new"));
+		assertEquals(Collections.emptyList(), instance.checkCaches());
+		assertFalse(instance.isValidLabel("new"));
+		assertFalse(instance.isValidLabel("spare"));
+		assertTrue(instance.isValidLabel("pair"));
+
+		instance.unreserve(Arrays.asList(r3));
+		assertEquals(Collections.emptyList(), instance.checkCaches());
+	}
+
+	/**
+	 * Test that the resources of a build are looked up from the index, and
+	 * that unlocking and resetting remove them from it.
+	 */
+	@Test
+	public void testBuildIndex() throws Exception {
+		System.out.println("buildIndex");
+		LockableResourcesManager instance = manager(6);
+		AbstractBuild<?, ?> build1 = build("job", 1);
+		AbstractBuild<?, ?> build2 = build("job", 2);
+		LockableResource r1 = instance.fromName("r1");
+		LockableResource r2 = instance.fromName("r2");
+		LockableResource r3 = instance.fromName("r3");
+		assertTrue(instance.getResourcesFromBuild(build1).isEmpty());
+
+		assertTrue(instance.lock(Arrays.asList("r1", "r2"), build1));
+		assertTrue(instance.lock(Arrays.asList("r3"), build2));
+		assertEquals(Arrays.asList(r1, r2), instance.getResourcesFromBuild(build1));
+		assertEquals(Arrays.asList(r3), instance.getResourcesFromBuild(build2));
+
+		instance.unlock(Arrays.asList(r1), build1);
+		assertEquals(Arrays.asList(r2), instance.getResourcesFromBuild(build1));
+		// another build cannot unlock it
+		instance.unlock(Arrays.asList(r2), build2);
+		assertEquals(Arrays.asList(r2), instance.getResourcesFromBuild(build1));
+
+		assertTrue(instance.lock(Arrays.asList("r1"), build2));
+		assertEquals(Arrays.asList(r3, r1), instance.getResourcesFromBuild(build2));
+		instance.reset(Arrays.asList(r2));
+		assertTrue(instance.getResourcesFromBuild(build1).isEmpty());
+		instance.unlock(instance.getResourcesFromBuild(build2), null);
+		assertTrue(instance.getResourcesFromBuild(build2).isEmpty());
+		assertFalse(r1.isLocked());
+		assertFalse(r3.isLocked());
+		assertEquals(Collections.emptyList(), instance.checkCaches());
+		instance.stop();
+	}
+
+	/**
+	 * Test that the resources of queue items and projects are looked up
+	 * from the indexes, and that locking, giving up and resetting remove
+	 * them from those.
+	 */
+	@Test
+	public void testQueueIndexes() throws Exception {
+		System.out.println("queueIndexes");
+		LockableResourcesManager instance = manager(10);
+		List<LockableResource> item1 = queue(instance, 1, "a", "odd", 2);
+		List<LockableResource> item2 = queue(instance, 2, "a", "even", 1);
+		List<LockableResource> item3 = queue(instance, 3, "b", "even", 1);
+		assertEquals(new HashSet<LockableResource>(item1), new HashSet<LockableResource>(instance.getResourcesFromQueueItem(1)));
+		assertEquals(item2, instance.getResourcesFromQueueItem(2));
+		assertEquals(item3, instance.getResourcesFromQueueItem(3));
+		assertTrue(instance.getResourcesFromQueueItem(4).isEmpty());
+		Set<LockableResource> projectA = new HashSet<LockableResource>(item1);
+		projectA.addAll(item2);
+		assertEquals(projectA, new HashSet<LockableResource>(instance.getResourcesFromProject("a")));
+		assertEquals(item3, instance.getResourcesFromProject("b"));
+
+		// the build of item 1 starts
+		assertTrue(instance.lock(names(item1), build("a", 1)));
+		assertTrue(instance.getResourcesFromQueueItem(1).isEmpty());
+		assertEquals(item2, instance.getResourcesFromProject("a"));
+
+		// item 2 gives up its queuing
+		assertTrue(instance.lock(names(item2), null));
+		assertTrue(instance.getResourcesFromQueueItem(2).isEmpty());
+		assertTrue(instance.getResourcesFromProject("a").isEmpty());
+
+		instance.reset(item3);
+		assertTrue(instance.getResourcesFromQueueItem(3).isEmpty());
+		assertTrue(instance.getResourcesFromProject("b").isEmpty());
+		assertEquals(Collections.emptyList(), instance.checkCaches());
+		instance.stop();
+	}
+
+	/**
+	 * Test that every change publishes a snapshot showing it, which readers
+	 * share until the next change.
+	 */
+	@Test
+	public void testSnapshot() throws Exception {
+		System.out.println("snapshot");
+		LockableResourcesManager instance = manager(4);
+		ResourcesSnapshot before = instance.getSnapshot();
+		assertEquals(instance.getStateVersion(), before.getVersion());
+		assertSame(before, instance.getSnapshot());
+		assertEquals(2, before.getFreeResourceAmount("even"));
+
+		assertTrue(instance.reserve(Arrays.asList(instance.fromName("r0")), "user"));
+		ResourcesSnapshot after = instance.getSnapshot();
+		assertEquals(instance.getStateVersion(), after.getVersion());
+		assertEquals(1, after.getFreeResourceAmount("even"));
+		assertEquals(1, after.getFreeResourceAmount("pair"));
+		assertEquals("user", after.getResources().get(0).getReservedBy());
+		// the earlier snapshot did not change
+		assertEquals(2, before.getFreeResourceAmount("even"));
+		assertFalse(before.getResources().get(0).isReserved());
+
+		assertTrue(instance.addResourceLabel(instance.fromName("r1"), "new"));
+		assertTrue(instance.getSnapshot().getAllLabels().contains("new"));
+		assertEquals("odd lb1 new", instance.getSnapshot().getResources().get(1).getLabels());
+		// the rows keep the labels they were taken with
+		assertEquals("odd lb1", after.getResources().get(1).getLabels());
+		assertEquals("r1", after.getResources().get(1).getName());
+		assertEquals(instance.getStateVersion(), instance.getSnapshot().getVersion());
+		instance.stop();
+	}
+
+	/**
+	 * Test that labels and aliases resolve to the resources with the label,
+	 * in configuration order, and that aliases share the set of their label.
+	 */
+	@Test
+	public void testLabelResolution() throws Exception {
+		System.out.println("labelResolution");
+		LockableResourcesManager instance = manager(6);
+		LockableResource r0 = instance.fromName("r0");
+		LockableResource r1 = instance.fromName("r1");
+		LockableResource r2 = instance.fromName("r2");
+		LockableResource r4 = instance.fromName("r4");
+		Set<LockableResource> even = instance.getResourcesWithLabel("even");
+		assertEquals(Arrays.asList(r0, r2, r4), new ArrayList<LockableResource>(even));
+		assertSame(even, instance.getResourcesWithLabel("even"));
+		assertSame(even, instance.getResourcesWithLabel("pair"));
+		assertEquals("even", instance.dereferenceLabelAlias("pair"));
+		try {
+			even.add(r1);
+			fail("the shared set must not be changed");
+		}
+		catch ( UnsupportedOperationException ex ) {
+			// expected
+		}
+		assertTrue(instance.getResourcesWithLabel("unknown").isEmpty());
+		// an alias for a label nobody has yet
+		assertTrue(instance.getResourcesWithLabel("spare").isEmpty());
+		assertFalse(instance.isValidLabel("spare"));
+
+		assertTrue(instance.addResourceLabel(r4, "new"));
+		assertTrue(instance.addResourceLabel(r1, "new"));
+		Set<LockableResource> added = instance.getResourcesWithLabel("new");
+		assertEquals(Arrays.asList(r1, r4), new ArrayList<LockableResource>(added));
+		assertSame(added, instance.getResourcesWithLabel("spare"));
+		assertEquals(Arrays.asList(r0, r2, r4), new ArrayList<LockableResource>(instance.getResourcesWithLabel("pair")));
+
+		// a rebuild resolves them the same way
+		instance.rebuildCaches();
+		assertEquals(Arrays.asList(r1, r4), new ArrayList<LockableResource>(instance.getResourcesWithLabel("spare")));
+		assertSame(instance.getResourcesWithLabel("even"), instance.getResourcesWithLabel("pair"));
+		instance.stop();
+	}
+
+	/**
+	 * Test that the load balancing groups are picked by their usage, and in
+	 * configuration order when their usage is the same.
+	 */
+	@Test
+	public void testLoadBalancingTies() throws Exception {
+		System.out.println("loadBalancingTies");
+		// lb0 has r0 and r3, lb1 has r1 and r4, r2 and r5 have no load balancing label
+		LockableResourcesManager instance = manager(6);
+		Set<LockableResource> all = new LinkedHashSet<LockableResource>(instance.getResources());
+
+		// all groups are unused, then all are used by half
+		Collection<LockableResource> queued = instance.queue(LockableResourcesStructs.of(all, "4"),
+				1, new LockedResourcesBuildAction(), "job", 4);
+		assertEquals(Arrays.asList("r0", "r1", "r2", "r3"), names(queued));
+		instance.unlock(new ArrayList<LockableResource>(queued), null);
+
+		// lb0 is used by half, the other two tie
+		assertTrue(instance.lock(Arrays.asList("r0"), build("job", 1)));
+		queued = instance.queue(LockableResourcesStructs.of(all, "1"),
+				2, new LockedResourcesBuildAction(), "job", 1);
+		assertEquals(Arrays.asList("r1"), names(queued));
+		queued = instance.queue(LockableResourcesStructs.of(all, "1"),
+				3, new LockedResourcesBuildAction(), "job", 1);
+		assertEquals(Arrays.asList("r2"), names(queued));
+		assertEquals(Collections.emptyList(), instance.checkCaches());
+		instance.stop();
+	}
+
+	/**
+	 * Test that a queuing expires in the background without anybody
+	 * reading the resource.
+	 */
+	@Test(timeout = 30000)
+	public void testQueuingExpiry() throws Exception {
+		System.out.println("queuingExpiry");
+		LockableResourcesManager instance = manager(4);
+		instance.setQueueTimeout(1);
+		LockableResource r1 = instance.fromName("r1");
+		r1.setQueued(7, "project");
+		assertEquals(0, instance.getFreeResourceAmount("lb1"));
+		while ( instance.getFreeResourceAmount("lb1") == 0 ) {
+			Thread.sleep(50);
+		}
+		assertEquals(LockableResource.NOT_QUEUED, r1.peekQueueItemId());
+		assertTrue(instance.getResourcesFromQueueItem(7).isEmpty());
+		assertEquals(Collections.emptyList(), instance.checkCaches());
+		instance.stop();
+	}
+
+	/**
+	 * Test that reservations, resets and label changes are published to the
+	 * change feed in order.
+	 */
+	@Test
+	public void testChangeFeed() {
+		System.out.println("changeFeed");
+		LockableResourcesManager instance = manager(4);
+		ChangeFeed.Subscription subscription = instance.getChangeFeed().subscribe(null);
+		LockableResource r1 = instance.fromName("r1");
+		LockableResource r2 = instance.fromName("r2");
+		assertTrue(instance.reserve(Arrays.asList(r1, r2), "user"));
+		instance.unreserve(Arrays.asList(r1));
+		instance.reset(Arrays.asList(r2));
+		assertTrue(instance.addResourceLabel(r1, "new"));
+
+		String[] expected = {
+				ChangeFeed.RESERVED, "r1", "user",
+				ChangeFeed.RESERVED, "r2", "user",
+				ChangeFeed.UNRESERVED, "r1", "user",
+				ChangeFeed.RESET, "r2", null,
+				ChangeFeed.CONFIG, "r1", "new" };
+		long version = subscription.getVersion();
+		for ( int i = 0; i < expected.length; i += 3 ) {
+			ChangeFeed.Event e = subscription.poll();
+			assertEquals(++version, e.version);
+			assertEquals(expected[i], e.type);
+			assertEquals(expected[i + 1], e.resource);
+			assertEquals(expected[i + 2], e.detail);
+		}
+		assertNull(subscription.poll());
+		subscription.close();
+		instance.stop();
+	}
+
+	/**
+	 * Test that locking and unlocking, with or without a build, publish
+	 * their events.
+	 */
+	@Test
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public void testChangeFeedLock() {
+		System.out.println("changeFeedLock");
+		LockableResourcesManager instance = manager(4);
+		AbstractProject project = mock(AbstractProject.class);
+		when(project.getFullName()).thenReturn("job");
+		AbstractBuild build = mock(AbstractBuild.class);
+		when(build.getParent()).thenReturn(project);
+		when(build.getFullDisplayName()).thenReturn("job #1");
+		ChangeFeed.Subscription subscription = instance.getChangeFeed().subscribe(null);
+		LockableResource r1 = instance.fromName("r1");
+
+		assertTrue(instance.lock(Arrays.asList("r1"), build));
+		assertSame(build, r1.getBuild());
+		instance.unlock(Arrays.asList(r1), build);
+		assertFalse(r1.isLocked());
+		// locking without a build only gives up a queuing
+		assertTrue(instance.lock(Arrays.asList("r1"), null));
+		r1.setQueued(7, "project");
+		assertTrue(instance.lock(Arrays.asList("r1"), null));
+		assertFalse(r1.isLocked());
+
+		String[] expected = {
+				ChangeFeed.LOCKED, "r1", "job #1",
+				ChangeFeed.UNLOCKED, "r1", "job #1",
+				ChangeFeed.UNQUEUED, "r1", "project" };
+		for ( int i = 0; i < expected.length; i += 3 ) {
+			ChangeFeed.Event e = subscription.poll();
+			assertEquals(expected[i], e.type);
+			assertEquals(expected[i + 1], e.resource);
+			assertEquals(expected[i + 2], e.detail);
+		}
+		assertNull(subscription.poll());
+		assertEquals(Collections.emptyList(), instance.checkCaches());
+		subscription.close();
+		instance.stop();
+	}
+
+	/**
+	 * Test that the checker notices caches which are out of date.
+	 */
+	@Test
+	public void testCheckCaches() {
+		System.out.println("checkCaches");
+		LockableResourcesManager instance = manager(4);
+		instance.fromName("r1").getModifyableLabelSet().add("stale");
+		assertFalse(instance.checkCaches().isEmpty());
+	}
+}
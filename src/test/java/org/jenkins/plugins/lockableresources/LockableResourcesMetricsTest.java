@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkins.plugins.lockableresources;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LockableResourcesMetricsTest {
+
+	/**
+	 * Test that values land in the bucket of the next power of two.
+	 */
+	@Test
+	public void testHistogramBuckets() {
+		System.out.println("histogramBuckets");
+		LockableResourcesMetrics.Histogram instance = new LockableResourcesMetrics.Histogram();
+		instance.record(500);          // below 1us
+		instance.record(3000);         // 3us, below 4us
+		instance.record(-1);           // clock went backwards
+		instance.record(Long.MAX_VALUE);
+		assertEquals(4, instance.getCount());
+		assertEquals(2, instance.getBucket(0));
+		assertEquals(1, instance.getBucket(2));
+		assertEquals(1, instance.getBucket(LockableResourcesMetrics.Histogram.BUCKETS - 1));
+	}
+
+	/**
+	 * Test that keys beyond the cap all share the one other series.
+	 */
+	@Test
+	public void testSeriesCap() {
+		System.out.println("seriesCap");
+		LockableResourcesMetrics instance = new LockableResourcesMetrics();
+		for ( int i = 0; i < 600; i++ ) {
+			instance.recordHold("r" + i, 1000);
+		}
+		assertNotNull(instance.getHold("r0"));
+		assertNull(instance.getHold("r599"));
+		LockableResourcesMetrics.Histogram other = instance.getHold(LockableResourcesMetrics.OTHER);
+		assertEquals(100, other.getCount());
+		instance.recordHold("r600", 1000);
+		instance.recordHold(null, 1000);
+		assertSame(other, instance.getHold(LockableResourcesMetrics.OTHER));
+		assertEquals(102, other.getCount());
+		assertNull(instance.getWait(LockableResourcesMetrics.OTHER));
+	}
+
+	/**
+	 * Test the text output.
+	 */
+	@Test
+	public void testWrite() throws IOException {
+		System.out.println("write");
+		LockableResourcesMetrics instance = new LockableResourcesMetrics();
+		instance.recordWait("label \"a\"", 2000000);
+		instance.recordHold("r1", 1000);
+		instance.recordSelection(true);
+		instance.recordSelection(false);
+		instance.recordSelection(false);
+		StringWriter out = new StringWriter();
+		instance.write(out);
+		String text = out.toString();
+		assertTrue(text, text.contains("lockable_resources_wait_seconds_bucket{label=\"label \\\"a\\\"\",le=\"+Inf\"} 1\n"));
+		assertTrue(text, text.contains("lockable_resources_wait_seconds_count{label=\"label \\\"a\\\"\"} 1\n"));
+		assertTrue(text, text.contains("lockable_resources_hold_seconds_sum{resource=\"r1\"} 1.0E-6\n"));
+		assertTrue(text, text.contains("lockable_resources_can_run_seconds_count 0\n"));
+		assertTrue(text, text.contains("lockable_resources_selections_total{result=\"failure\"} 2\n"));
+	}
+}
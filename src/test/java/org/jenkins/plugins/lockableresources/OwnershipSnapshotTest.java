@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkins.plugins.lockableresources;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class OwnershipSnapshotTest {
+
+	/**
+	 * Test that only owned resources are written and read back.
+	 */
+	@Test
+	public void testWriteAndRead() throws IOException {
+		System.out.println("writeAndRead");
+		File file = File.createTempFile("lockable-resources", ".owners");
+		try {
+			OwnershipSnapshot instance = new OwnershipSnapshot(file);
+			LockableResource r1 = new LockableResource("r1", null, null, null, null);
+			LockableResource r2 = new LockableResource("r2", null, null, null, null);
+			r2.setQueued(42, "folder/some project");
+			instance.write(Arrays.asList(r1, r2));
+
+			List<OwnershipSnapshot.Owner> owners = new OwnershipSnapshot(file).read();
+			assertEquals(1, owners.size());
+			assertEquals("r2", owners.get(0).resource);
+			assertNull(owners.get(0).buildProject);
+			assertEquals(42, owners.get(0).queueItemId);
+			assertEquals("folder/some project", owners.get(0).queueItemProject);
+
+			r2.unqueue();
+			instance.write(Arrays.asList(r1, r2));
+			assertTrue(instance.read().isEmpty());
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test that a missing file means no owners.
+	 */
+	@Test
+	public void testMissingFile() throws IOException {
+		System.out.println("missingFile");
+		File file = File.createTempFile("lockable-resources", ".owners");
+		file.delete();
+		assertTrue(new OwnershipSnapshot(file).read().isEmpty());
+	}
+}
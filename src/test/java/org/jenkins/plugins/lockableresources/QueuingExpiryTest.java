@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkins.plugins.lockableresources;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class QueuingExpiryTest {
+
+	private static class RecordingCallback implements QueuingExpiry.Callback {
+		final List<LockableResource> expired = new CopyOnWriteArrayList<LockableResource>();
+		public void expire(LockableResource r) {
+			expired.add(r);
+		}
+	}
+
+	/**
+	 * Test that resources are handed to the callback in deadline order, and
+	 * only once however often they were scheduled.
+	 */
+	@Test(timeout = 30000)
+	public void testSchedule() throws Exception {
+		System.out.println("schedule");
+		RecordingCallback callback = new RecordingCallback();
+		QueuingExpiry instance = new QueuingExpiry(callback);
+		LockableResource r1 = new LockableResource("r1", null, null, null, null);
+		LockableResource r2 = new LockableResource("r2", null, null, null, null);
+		instance.schedule(r1, TimeUnit.MILLISECONDS.toNanos(300));
+		instance.schedule(r2, TimeUnit.MILLISECONDS.toNanos(100));
+		instance.schedule(r1, TimeUnit.MILLISECONDS.toNanos(100));
+		assertEquals(2, instance.size());
+		while ( callback.expired.size() < 2 ) {
+			Thread.sleep(10);
+		}
+		assertEquals(r2, callback.expired.get(0));
+		assertEquals(r1, callback.expired.get(1));
+		assertEquals(0, instance.size());
+
+		// due again once the callback got it
+		instance.schedule(r1, 0);
+		while ( callback.expired.size() < 3 ) {
+			Thread.sleep(10);
+		}
+		instance.stop();
+	}
+
+	/**
+	 * Test that stopping drops what is pending.
+	 */
+	@Test
+	public void testStop() {
+		System.out.println("stop");
+		RecordingCallback callback = new RecordingCallback();
+		QueuingExpiry instance = new QueuingExpiry(callback);
+		instance.schedule(new LockableResource("r1", null, null, null, null), TimeUnit.HOURS.toNanos(1));
+		instance.stop();
+		assertEquals(0, instance.size());
+		assertTrue(callback.expired.isEmpty());
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResourceLocksTest {
+
+	/**
+	 * Test that overlapping resource sets taken in opposite orders do not deadlock.
+	 */
+	@Test(timeout = 30000)
+	public void testLockOrderIsDeterministic() throws Exception {
+		System.out.println("lock");
+		final ResourceLocks instance = new ResourceLocks(8);
+		final List<LockableResource> forward = new ArrayList<LockableResource>();
+		for ( int i = 0; i < 32; i++ ) {
+			forward.add(new LockableResource("r" + i, null, null, null, null));
+		}
+		final List<LockableResource> backward = new ArrayList<LockableResource>(forward);
+		Collections.reverse(backward);
+
+		final CountDownLatch done = new CountDownLatch(2);
+		for ( final List<LockableResource> order : Arrays.asList(forward, backward) ) {
+			new Thread() {
+				@Override
+				public void run() {
+					for ( int i = 0; i < 10000; i++ ) {
+						Lock[] held = instance.lock(order);
+						instance.unlock(held);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		assertTrue("deadlock", done.await(20, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Test that a resource always maps to the same stripe.
+	 */
+	@Test
+	public void testStripeFor() {
+		System.out.println("stripeFor");
+		ResourceLocks instance = new ResourceLocks(10);
+		assertEquals(16, instance.getStripeCount());
+		int stripe = instance.stripeFor("r1");
+		assertTrue(stripe >= 0 && stripe < 16);
+		assertEquals(stripe, instance.stripeFor(new String("r1")));
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResourceQueryTest {
+
+	LockableResourcesManager manager;
+
+	@Before
+	public void setUp() {
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for ( int i = 0; i < 10; i++ ) {
+			resources.add(new LockableResource("r" + i, null, i % 2 == 0 ? "even" : "odd", null, null));
+		}
+		List<String> none = Collections.emptyList();
+		manager = new LockableResourcesManager(resources, none, Collections.<String,String>emptyMap());
+		manager.reserve(Arrays.asList(manager.fromName("r2"), manager.fromName("r4")), "alice");
+		manager.reserve(Arrays.asList(manager.fromName("r3")), "bob");
+	}
+
+	private static List<String> names(JSONObject page) {
+		List<String> names = new ArrayList<String>();
+		for ( Object o : (JSONArray)page.get("resources") ) {
+			names.add(((JSONObject)o).getString("name"));
+		}
+		return names;
+	}
+
+	/**
+	 * Test that label, state and reserver filters combine.
+	 */
+	@Test
+	public void testFilter() {
+		System.out.println("filter");
+		assertEquals(Arrays.asList("r2", "r4"),
+				names(new ResourceQuery("even", "reserved", null, null, 0, null).run(manager)));
+		assertEquals(Arrays.asList("r0", "r6", "r8"),
+				names(new ResourceQuery("even", "free", null, null, 0, null).run(manager)));
+		assertEquals(Arrays.asList("r3"),
+				names(new ResourceQuery(null, null, "bob", null, 0, null).run(manager)));
+		assertEquals(Collections.emptyList(),
+				names(new ResourceQuery("missing", null, null, null, 0, null).run(manager)));
+		// empty states are skipped
+		assertEquals(Arrays.asList("r0", "r2", "r4", "r6", "r8"),
+				names(new ResourceQuery("even", "free,,reserved,", null, null, 0, null).run(manager)));
+	}
+
+	/**
+	 * Test that a limit given by a client must be a page size within bounds.
+	 */
+	@Test
+	public void testParseLimit() {
+		System.out.println("parseLimit");
+		assertEquals(0, ResourceQuery.parseLimit(null));
+		assertEquals(0, ResourceQuery.parseLimit(" "));
+		assertEquals(25, ResourceQuery.parseLimit("25"));
+		assertEquals(ResourceQuery.MAX_LIMIT, ResourceQuery.parseLimit(Integer.toString(ResourceQuery.MAX_LIMIT)));
+		for ( String limit : new String[] { "0", "-1", "1001", "ten" } ) {
+			try {
+				ResourceQuery.parseLimit(limit);
+				fail("accepted " + limit);
+			}
+			catch ( IllegalArgumentException ex ) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Test that following the cursor lists every resource once.
+	 */
+	@Test
+	public void testPaging() {
+		System.out.println("paging");
+		List<String> all = new ArrayList<String>();
+		String cursor = null;
+		int pages = 0;
+		do {
+			JSONObject page = new ResourceQuery(null, null, null, cursor, 4, null).run(manager);
+			all.addAll(names(page));
+			Object next = page.get("next");
+			cursor = next instanceof JSONNull ? null : (String)next;
+			pages++;
+		} while ( cursor != null );
+		assertEquals(3, pages);
+		assertEquals(10, all.size());
+		assertEquals("r9", all.get(9));
+		try {
+			new ResourceQuery(null, null, null, "missing", 4, null).run(manager);
+			fail("accepted an unknown cursor");
+		}
+		catch ( IllegalArgumentException ex ) {
+			// expected
+		}
+	}
+
+	/**
+	 * Test that only the requested fields are listed.
+	 */
+	@Test
+	public void testFields() {
+		System.out.println("fields");
+		JSONObject json = ResourceQuery.toJSON(manager.fromName("r3"),
+				ResourceQuery.parseFields("name,reservedBy,,free,"));
+		assertEquals(Arrays.asList("name", "reservedBy", "free"), new ArrayList<Object>(json.keySet()));
+		assertEquals("bob", json.getString("reservedBy"));
+		assertFalse(json.getBoolean("free"));
+		try {
+			ResourceQuery.parseFields("name,password");
+			fail("accepted an unknown field");
+		}
+		catch ( IllegalArgumentException ex ) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResourceStateIndexTest {
+
+	private static List<LockableResource> resources(int count) {
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for ( int i = 0; i < count; i++ ) {
+			resources.add(new LockableResource("r" + i, null, null, null, null));
+		}
+		return resources;
+	}
+
+	/**
+	 * Test that ids are assigned in order and filtering follows the states.
+	 */
+	@Test
+	public void testFree() {
+		System.out.println("free");
+		List<LockableResource> resources = resources(130);
+		ResourceStateIndex instance = new ResourceStateIndex(resources);
+		assertEquals(130, instance.size());
+		assertEquals(64, resources.get(64).getId());
+		ResourceIdSet all = instance.idsOf(resources);
+		assertEquals(130, all.size());
+
+		resources.get(0).setReservedBy("user");
+		instance.update(resources.get(0));
+		resources.get(64).setQueued(1, "project");
+		instance.update(resources.get(64));
+		resources.get(129).setQueued(1, "project");
+		instance.update(resources.get(129));
+
+		long[] free = instance.free(all);
+		assertEquals(127, ResourceIdSet.cardinality(free));
+		assertEquals(1, ResourceIdSet.nextSetBit(free, 0));
+		assertEquals(65, ResourceIdSet.nextSetBit(free, 64));
+		assertEquals(-1, ResourceIdSet.nextSetBit(free, 129));
+		assertEquals(65, ResourceIdSet.nthSetBit(free, 63));
+		assertEquals(2, ResourceIdSet.cardinality(instance.queued(all)));
+
+		resources.get(64).unqueue();
+		instance.update(resources.get(64));
+		assertEquals(128, ResourceIdSet.cardinality(instance.free(all)));
+	}
+
+	/**
+	 * Test that resources of another configuration are not given an id.
+	 */
+	@Test
+	public void testIdsOfForeignResources() {
+		System.out.println("idsOf");
+		List<LockableResource> resources = resources(3);
+		ResourceStateIndex instance = new ResourceStateIndex(resources);
+		List<LockableResource> others = resources(3);
+		new ResourceStateIndex(others);
+		assertTrue(instance.idsOf(others).isEmpty());
+		assertEquals("[0, 1, 2]", instance.idsOf(resources).toString());
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkins.plugins.lockableresources;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StateJournalTest {
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("lockable-resources", ".journal");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+		new File(file.getPath() + ".old").delete();
+	}
+
+	/**
+	 * Test that entries are read back in order, with odd characters intact.
+	 */
+	@Test
+	public void testAppendAndRead() throws IOException {
+		System.out.println("appendAndRead");
+		StateJournal instance = new StateJournal(file);
+		instance.append(StateJournal.RESERVE, Arrays.asList("r1", "r 2"), "some\tuser");
+		instance.append(StateJournal.UNRESERVE, Arrays.asList("r1"), null);
+		assertEquals(3, instance.getEntries());
+		instance.close();
+
+		List<StateJournal.Entry> entries = new StateJournal(file).read();
+		assertEquals(3, entries.size());
+		assertEquals(StateJournal.RESERVE, entries.get(1).op);
+		assertEquals("r 2", entries.get(1).resource);
+		assertEquals("some\tuser", entries.get(1).arg);
+		assertEquals(StateJournal.UNRESERVE, entries.get(2).op);
+		assertNull(entries.get(2).arg);
+	}
+
+	/**
+	 * Test that rotated entries are kept until discarded, and come first.
+	 */
+	@Test
+	public void testRotate() throws IOException {
+		System.out.println("rotate");
+		StateJournal instance = new StateJournal(file);
+		instance.append(StateJournal.ADD_LABEL, Arrays.asList("r1"), "a");
+		instance.rotate();
+		assertEquals(0, instance.getEntries());
+		instance.append(StateJournal.ADD_LABEL, Arrays.asList("r1"), "b");
+		// a save which failed leaves the rotated entries behind
+		instance.rotate();
+		instance.append(StateJournal.ADD_LABEL, Arrays.asList("r1"), "c");
+
+		List<StateJournal.Entry> entries = instance.read();
+		assertEquals(3, entries.size());
+		assertEquals("a", entries.get(0).arg);
+		assertEquals("b", entries.get(1).arg);
+		assertEquals("c", entries.get(2).arg);
+
+		instance.discardRotated();
+		entries = instance.read();
+		assertEquals(1, entries.size());
+		assertEquals("c", entries.get(0).arg);
+		instance.close();
+	}
+
+	/**
+	 * Test that a line cut off by a crash is skipped.
+	 */
+	@Test
+	public void testPartialLine() throws IOException {
+		System.out.println("partialLine");
+		StateJournal instance = new StateJournal(file);
+		instance.append(StateJournal.RESERVE, Arrays.asList("r1"), "user");
+		instance.close();
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write("reserve\tr2\tus".getBytes("UTF-8"));
+		out.close();
+
+		instance = new StateJournal(file);
+		assertEquals(1, instance.read().size());
+		instance.append(StateJournal.RESET, Arrays.asList("r3"), null);
+		List<StateJournal.Entry> entries = instance.read();
+		assertEquals(2, entries.size());
+		assertEquals("r3", entries.get(1).resource);
+		instance.close();
+	}
+}
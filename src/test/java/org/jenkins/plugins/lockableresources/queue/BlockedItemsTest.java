@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkins.plugins.lockableresources.queue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BlockedItemsTest {
+
+	BlockedItems instance;
+	LockableResource r1;
+	LockableResource r2;
+
+	@Before
+	public void setUp() {
+		this.instance = new BlockedItems();
+		this.r1 = new LockableResource("r1", null, "l1", null, null);
+		this.r2 = new LockableResource("r2", null, "l1", null, null);
+	}
+
+	/**
+	 * Test that only the items waiting for a released resource are returned.
+	 */
+	@Test
+	public void testGetWaitingItems() {
+		System.out.println("getWaitingItems");
+		instance.block(1, new LinkedHashSet<LockableResource>(Arrays.asList(r1, r2)));
+		instance.block(2, Collections.singleton(r2));
+		assertEquals(Collections.singleton(1), instance.getWaitingItems(Collections.singleton(r1)));
+		Set<Integer> both = instance.getWaitingItems(Collections.singleton(r2));
+		assertEquals(2, both.size());
+	}
+
+	/**
+	 * Test that unblocked items are forgotten.
+	 */
+	@Test
+	public void testUnblock() {
+		System.out.println("unblock");
+		instance.block(1, Collections.singleton(r1));
+		instance.unblock(1);
+		assertFalse(instance.isBlocked(1));
+		assertEquals(0, instance.size());
+		assertTrue(instance.getWaitingItems(Collections.singleton(r1)).isEmpty());
+	}
+
+	/**
+	 * Test that blocking again replaces the previous candidates.
+	 */
+	@Test
+	public void testBlockReplacesCandidates() {
+		System.out.println("block");
+		instance.block(1, Collections.singleton(r1));
+		instance.block(1, Collections.singleton(r2));
+		assertTrue(instance.getWaitingItems(Collections.singleton(r1)).isEmpty());
+		assertEquals(Collections.singleton(1), instance.getWaitingItems(Collections.singleton(r2)));
+	}
+}
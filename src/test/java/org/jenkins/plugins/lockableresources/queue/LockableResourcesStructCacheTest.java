@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 SAP SE.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkins.plugins.lockableresources.queue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.LockableResourcesManagers;
+import org.jenkins.plugins.lockableresources.ResourceIdSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LockableResourcesStructCacheTest {
+
+	/**
+	 * Test that a cached requirement is dropped when the configuration
+	 * changes or its source differs, and kept across state changes.
+	 */
+	@Test
+	public void testInvalidation() throws Exception {
+		System.out.println("invalidation");
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for ( int i = 0; i < 4; i++ ) {
+			resources.add(new LockableResource("r" + i, null, "pool", null, null));
+		}
+		LockableResourcesManager manager = LockableResourcesManagers.create(resources,
+				Collections.<String>emptyList(), Collections.<String,String>emptyMap());
+		LockableResourcesStruct struct = LockableResourcesStructs.of(manager.getResourcesWithLabel("pool"), "1");
+		LockableResourcesStructCache instance = new LockableResourcesStructCache();
+
+		instance.put(1, manager.getConfigGeneration(), "pool", struct);
+		assertSame(struct, instance.get(1, manager.getConfigGeneration(), "pool"));
+		assertNull(instance.get(2, manager.getConfigGeneration(), "pool"));
+		// another parameter value or property
+		assertNull(instance.get(1, manager.getConfigGeneration(), "other"));
+		assertEquals(0, instance.size());
+
+		// state changes keep the entry
+		instance.put(1, manager.getConfigGeneration(), "pool", struct);
+		ResourceIdSet ids = struct.getRequiredIds(manager);
+		assertTrue(manager.reserve(Arrays.asList(manager.fromName("r0")), "user"));
+		assertSame(struct, instance.get(1, manager.getConfigGeneration(), "pool"));
+		assertSame(ids, struct.getRequiredIds(manager));
+
+		// a label edit drops it
+		assertTrue(manager.addResourceLabel(manager.fromName("r1"), "new"));
+		assertNull(instance.get(1, manager.getConfigGeneration(), "pool"));
+		assertEquals(0, instance.size());
+		assertNotSame(ids, struct.getRequiredIds(manager));
+
+		// and so does a reconfiguration
+		instance.put(1, manager.getConfigGeneration(), "pool", struct);
+		ids = struct.getRequiredIds(manager);
+		LockableResourcesManagers.rebuildCaches(manager);
+		assertNull(instance.get(1, manager.getConfigGeneration(), "pool"));
+		assertNotSame(ids, struct.getRequiredIds(manager));
+
+		instance.put(1, manager.getConfigGeneration(), "pool", struct);
+		instance.remove(1);
+		assertEquals(0, instance.size());
+		manager.stop();
+	}
+}